@@ -0,0 +1,161 @@
+package com.simlab.ug.client;
+
+import com.google.protobuf.ByteString;
+import com.simlab.ug.grpc.BatchEntry;
+import com.simlab.ug.grpc.FileChunk;
+import com.simlab.ug.grpc.FileData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Reassembles chunked {@link FileData} messages into files on disk. Every slice is written
+ * at its offset as soon as it arrives, so a file is never held in memory as a whole.
+ *
+ * <p>A file is assembled in a hidden partial file next to its target and renamed over the target
+ * once complete, so readers of the target never see a half-written version. Appends to a
+ * followed file are the exception: they extend the target in place. With
+ * {@link #setSyncToDisk} the partial file is forced to disk before the rename, so a crash
+ * cannot leave a renamed target that lacks its contents.
+ *
+ * <p>Messages of one file must come from one thread at a time; different files may be written
+ * concurrently.
+ */
+class ChunkedFileAssembler implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedFileAssembler.class);
+
+    private final Function<String, Path> targetResolver;
+    // Files with a transfer in progress, keyed by the filename sent by the server
+    private final Map<String, FileChannel> openFiles = new ConcurrentHashMap<>();
+    private volatile boolean syncToDisk;
+
+    ChunkedFileAssembler(Function<String, Path> targetResolver) {
+        this.targetResolver = targetResolver;
+    }
+
+    // If enabled, completed files are forced to disk before they are renamed into place
+    void setSyncToDisk(boolean syncToDisk) {
+        this.syncToDisk = syncToDisk;
+    }
+
+    /**
+     * Writes one message to its target file.
+     *
+     * @return true if the message completed the file
+     */
+    boolean write(FileData fileData) throws IOException {
+        String filename = fileData.getFilename();
+        Path target = targetResolver.apply(filename);
+
+        if (!fileData.hasChunk()) {
+            // Whole file in a single message
+            writeWhole(target, fileData.getContent());
+            return true;
+        }
+
+        FileChunk chunk = fileData.getChunk();
+        // Appends extend the complete file; everything else is assembled beside it
+        Path file = chunk.getAppend() ? target : partialPathOf(target);
+        FileChannel channel = openFiles.get(filename);
+        if (channel == null || chunk.getOffset() == 0) {
+            if (chunk.getAppend() && channel == null && sizeOf(target) < chunk.getOffset()) {
+                // The copy on disk lacks bytes the server counts as sent, e.g. it was edited locally
+                logger.warn("Appending to {} at offset {} beyond its local size {}", target, chunk.getOffset(), sizeOf(target));
+            }
+            if (channel != null) {
+                // A new transfer of the same file started before the previous one finished
+                channel.close();
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            openFiles.put(filename, channel);
+        }
+
+        writeAt(channel, fileData.getContent(), chunk.getOffset());
+
+        if (chunk.getLast()) {
+            openFiles.remove(filename);
+            try {
+                // Drop any stale tail left over from a previous, longer version of the file
+                channel.truncate(chunk.getTotalSize());
+                if (syncToDisk && file != target) {
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+            if (file != target) {
+                moveIntoPlace(file, target);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Writes a complete file received in one piece. */
+    void writeWhole(String filename, ByteString content) throws IOException {
+        writeWhole(targetResolver.apply(filename), content);
+    }
+
+    /** The hidden file {@code target} is assembled in, e.g. {@code .sol_t0001.vtu.part}. */
+    static Path partialPathOf(Path target) {
+        return target.resolveSibling("." + target.getFileName() + ".part");
+    }
+
+    /** Contents of one file of a batched message; shares the message's bytes. */
+    static ByteString sliceOf(FileData fileData, BatchEntry entry) {
+        return fileData.getContent().substring((int) entry.getOffset(), (int) (entry.getOffset() + entry.getLength()));
+    }
+
+    /** Closes all partially received files; they stay on disk to be resumed. */
+    @Override
+    public void close() {
+        openFiles.forEach((filename, channel) -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close partial file {}", filename, e);
+            }
+        });
+        openFiles.clear();
+    }
+
+    private void writeWhole(Path target, ByteString content) throws IOException {
+        Path partial = partialPathOf(target);
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeAt(channel, content, 0);
+            if (syncToDisk) {
+                channel.force(true);
+            }
+        }
+        moveIntoPlace(partial, target);
+    }
+
+    private static void moveIntoPlace(Path partial, Path target) throws IOException {
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long sizeOf(Path file) throws IOException {
+        return Files.isRegularFile(file) ? Files.size(file) : 0;
+    }
+
+    private static void writeAt(FileChannel channel, ByteString content, long offset) throws IOException {
+        long position = offset;
+        for (ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -18,7 +18,6 @@ import org.slf4j.LoggerFactory;
 import com.jpro.webapi.WebAPI;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
@@ -28,6 +27,8 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ClientApplication extends Application {
     private static final Logger logger = LoggerFactory.getLogger(ClientApplication.class);
@@ -406,6 +407,9 @@ public class ClientApplication extends Application {
             previousSimulationId = null;
             
             // Reset FileSyncManager to ensure clean state on reconnect
+            if (fileSyncManager != null) {
+                fileSyncManager.close();
+            }
             fileSyncManager = null;
             
             Platform.runLater(() -> {
@@ -424,6 +428,7 @@ public class ClientApplication extends Application {
         try {
             String host = serverHostField.getText();
             int port = Integer.parseInt(serverPortField.getText());
+            String outputDir = outputDirField != null ? outputDirField.getText() : "";
             
             if (client != null) {
                 client.shutdown();
@@ -443,6 +448,7 @@ public class ClientApplication extends Application {
 //                    ugExecutableField.setText(status.getUgPath());
                     log("Connected to server at " + host + ":" + port);
                 });
+                resumeJournaledSync(status, outputDir);
             } else {
                 throw new RuntimeException("Failed to connect");
             }
@@ -459,6 +465,28 @@ public class ClientApplication extends Application {
         }
     }
     
+    // After a client restart, picks up the file sync of a simulation that is still running
+    private void resumeJournaledSync(ServerStatus status, String outputDir) {
+        if (outputDir.isEmpty() || currentSimulationId != null) {
+            return;
+        }
+        if (fileSyncManager == null) {
+            fileSyncManager = new FileSyncManager(client);
+        }
+        String simulationId = fileSyncManager.getJournaledSimulation(outputDir);
+        if (simulationId == null || status.getActiveSimulationsList().stream()
+                .noneMatch(simulation -> simulation.getSimulationId().equals(simulationId))) {
+            return;
+        }
+        List<String> filePatterns = fileSyncManager.getJournaledPatterns(outputDir);
+        if (filePatterns.isEmpty()) {
+            return;
+        }
+        currentSimulationId = simulationId;
+        fileSyncManager.startSync(simulationId, filePatterns, true, outputDir);
+        Platform.runLater(() -> log("Resuming file sync for running simulation " + simulationId));
+    }
+    
     private void browseForScript() {
         WebAPI webAPI = WebAPI.getWebAPI(primaryStage);
         if (webAPI != null) {
@@ -892,36 +920,49 @@ public class ClientApplication extends Application {
                 // Use the filename pattern to match the file
                 List<String> patterns = Arrays.asList(filename);
                 
-                // Create a list to collect file data
-                List<FileData> receivedFiles = new ArrayList<>();
+                // Write the first matching file straight to disk as its chunks arrive
+                AtomicReference<String> savedName = new AtomicReference<>();
+                AtomicBoolean failed = new AtomicBoolean(false);
+                AtomicBoolean complete = new AtomicBoolean(false);
+                ChunkedFileAssembler assembler = new ChunkedFileAssembler(name -> saveFile.toPath());
                 
                 client.getSimulationResults(currentSimulationId, patterns,
                         fileData -> {
-                            // Collect the file data
-                            receivedFiles.add(fileData);
-                            Platform.runLater(() -> 
-                                    log("Received: " + fileData.getFilename() + " (" + 
-                                        fileData.getContent().size() + " bytes)"));
-                        },
-                        () -> {
-                            // Write the first matching file when complete
-                            if (!receivedFiles.isEmpty()) {
-                                try {
-                                    FileData fileData = receivedFiles.get(0);
-                                    try (FileOutputStream fos = new FileOutputStream(saveFile)) {
-                                        fos.write(fileData.getContent().toByteArray());
-                                        Platform.runLater(() -> 
-                                                log("Successfully saved: " + saveFile.getAbsolutePath()));
-                                    }
-                                } catch (IOException e) {
-                                    logger.error("Error saving file", e);
+                            savedName.compareAndSet(null, fileData.getFilename());
+                            if (!fileData.getFilename().equals(savedName.get()) || failed.get()) {
+                                return;
+                            }
+                            try {
+                                if (assembler.write(fileData)) {
+                                    complete.set(true);
+                                    long size = fileData.hasChunk() ? fileData.getChunk().getTotalSize() : fileData.getContent().size();
                                     Platform.runLater(() -> 
-                                            showAlert("Download Error", "Failed to save file: " + e.getMessage()));
+                                            log("Received: " + fileData.getFilename() + " (" + size + " bytes)"));
                                 }
-                            } else {
+                            } catch (IOException e) {
+                                failed.set(true);
+                                logger.error("Error saving file", e);
+                                Platform.runLater(() -> 
+                                        showAlert("Download Error", "Failed to save file: " + e.getMessage()));
+                            }
+                        },
+                        () -> {
+                            assembler.close();
+                            if (savedName.get() == null) {
                                 Platform.runLater(() -> 
                                         log("No files received for download"));
+                            } else if (complete.get()) {
+                                Platform.runLater(() -> 
+                                        log("Successfully saved: " + saveFile.getAbsolutePath()));
+                            } else if (!failed.get()) {
+                                Platform.runLater(() -> 
+                                        showAlert("Download Error", "Download of " + savedName.get() + " ended before the file was complete"));
                             }
+                        },
+                        t -> {
+                            assembler.close();
+                            Platform.runLater(() -> 
+                                    showAlert("Download Error", "Failed to download " + filename + ": " + t.getMessage()));
                         }
                 );
             }
@@ -0,0 +1,216 @@
+package com.simlab.ug.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes received files on a few dedicated threads, so the threads that receive them never wait
+ * for the disk.
+ *
+ * <p>Tasks are spread over single-threaded lanes by key, normally the file name: the tasks of one
+ * file run in submission order on one thread, different files in parallel. What bounds the data
+ * held in queued tasks is the callers' receive window: they receive more only as tasks finish
+ * (see {@link SimulationClient#subscribeResults(com.simlab.ug.grpc.SubscribeResultsRequest, int,
+ * java.util.function.BiConsumer, java.util.function.Consumer)}), so {@link #submit} normally
+ * never waits. Each lane's queue still holds at most {@link #LANE_CAPACITY} tasks as a backstop;
+ * beyond that submitting blocks, which is why tasks must not submit to the writer themselves.
+ * A {@link #barrier} runs once everything submitted before it is done.
+ *
+ * <p>With {@link #setSyncToDisk} the tasks force each file's contents to disk before renaming it
+ * into place. The renames of the files reported through {@link #written} are then made durable
+ * in batches, by forcing their directories whenever a lane runs idle or has collected
+ * {@link #SYNC_BATCH} files, and the callback of each file only runs after that.
+ */
+final class DiskWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DiskWriter.class);
+
+    static final int DEFAULT_THREADS = 2;
+    static final int SYNC_BATCH = 32;
+    static final int LANE_CAPACITY = 4096;
+
+    /** A write; failures are logged with the task's key. */
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private final Lane[] lanes;
+    private volatile boolean syncToDisk;
+
+    DiskWriter() {
+        this(DEFAULT_THREADS);
+    }
+
+    DiskWriter(int threads) {
+        lanes = new Lane[Math.max(1, threads)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i);
+            lanes[i].start();
+        }
+    }
+
+    // If enabled, completed files are forced to disk before their callbacks run
+    void setSyncToDisk(boolean syncToDisk) {
+        this.syncToDisk = syncToDisk;
+    }
+
+    boolean isSyncToDisk() {
+        return syncToDisk;
+    }
+
+    /** Queues {@code task} behind the earlier tasks of {@code key}. */
+    void submit(String key, Task task) {
+        submit(key, task, () -> { });
+    }
+
+    /** Queues {@code task} behind the earlier tasks of {@code key}; {@code then} runs after it, even if it failed. */
+    void submit(String key, Task task, Runnable then) {
+        lanes[Math.floorMod(key.hashCode(), lanes.length)].put(() -> {
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to write {}", key, e);
+            } finally {
+                then.run();
+            }
+        });
+    }
+
+    /** Runs {@code action} once all tasks submitted so far are done and their files are durable. */
+    void barrier(Runnable action) {
+        AtomicInteger remaining = new AtomicInteger(lanes.length);
+        for (Lane lane : lanes) {
+            lane.put(() -> {
+                lane.syncPending();
+                if (remaining.decrementAndGet() == 0) {
+                    action.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by a task for a file it has completed; {@code then} runs once the file is durable,
+     * at once if syncing is off.
+     */
+    void written(Path file, Runnable then) {
+        Thread current = Thread.currentThread();
+        if (!syncToDisk || !(current instanceof Lane)) {
+            then.run();
+            return;
+        }
+        ((Lane) current).pending.add(new Written(file, then));
+    }
+
+    /** Finishes the queued tasks, waiting up to a few seconds, and stops the threads. */
+    @Override
+    public void close() {
+        for (Lane lane : lanes) {
+            lane.put(() -> lane.running = false);
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Written {
+        final Path file;
+        final Runnable then;
+
+        Written(Path file, Runnable then) {
+            this.file = file;
+            this.then = then;
+        }
+    }
+
+    private static final class Lane extends Thread {
+        private final BlockingQueue<Runnable> queue;
+        // Only used by this thread
+        private final List<Written> pending = new ArrayList<>();
+        private boolean running = true;
+
+        Lane(int index) {
+            super("DiskWriter-" + index);
+            this.queue = new LinkedBlockingQueue<>(LANE_CAPACITY);
+            setDaemon(true);
+        }
+
+        void put(Runnable task) {
+            try {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while waiting for room in {}; a write was dropped", getName());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Runnable task = queue.poll();
+                    if (task == null) {
+                        // Idle: a good moment to make the finished files durable
+                        syncPending();
+                        task = queue.take();
+                    }
+                    runQuietly(task);
+                    if (pending.size() >= SYNC_BATCH) {
+                        syncPending();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                syncPending();
+            }
+        }
+
+        // Contents were forced before each rename; what is left is the directory entries
+        void syncPending() {
+            if (pending.isEmpty()) return;
+            Set<Path> directories = new HashSet<>();
+            for (Written written : pending) {
+                directories.add(written.file.toAbsolutePath().getParent());
+            }
+            for (Path directory : directories) {
+                try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                    channel.force(true);
+                } catch (IOException e) {
+                    // Directories cannot be opened on every platform (Windows); there the rename is as durable as the OS makes it
+                    logger.debug("Cannot sync directory {}: {}", directory, e.getMessage());
+                }
+            }
+            for (Written written : pending) {
+                runQuietly(written.then);
+            }
+            pending.clear();
+        }
+
+        private static void runQuietly(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Disk writer task failed", e);
+            }
+        }
+    }
+}
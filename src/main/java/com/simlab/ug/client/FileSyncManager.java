@@ -1,19 +1,37 @@
 package com.simlab.ug.client;
 
+import com.google.protobuf.ByteString;
+import com.simlab.ug.common.DeltaSync;
+import com.simlab.ug.common.FileHashes;
+import com.simlab.ug.grpc.BatchEntry;
+import com.simlab.ug.grpc.BlockSignature;
+import com.simlab.ug.grpc.FileChunk;
 import com.simlab.ug.grpc.FileData;
+import com.simlab.ug.grpc.FileDeltaRequest;
+import com.simlab.ug.grpc.HaveFile;
+import com.simlab.ug.grpc.ResultFileInfo;
+import com.simlab.ug.grpc.ResumePoint;
+import com.simlab.ug.grpc.SubscribeResultsRequest;
+import com.simlab.ug.grpc.TransferClass;
+import io.grpc.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * Subscribes to the server for result files (e.g., VTU) and writes them into the client's output directory.
@@ -21,19 +39,110 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class FileSyncManager {
     private static final Logger logger = LoggerFactory.getLogger(FileSyncManager.class);
 
+    // Reconnect backoff: doubles from the initial delay up to the maximum, randomized by up to half
+    private static final long INITIAL_RECONNECT_DELAY_MS = 500;
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+    // Consecutive failed attempts before the sync gives up, about an hour at the maximum delay
+    private static final int MAX_RECONNECT_ATTEMPTS = 120;
+    private static final long JOURNAL_SAVE_INTERVAL_MS = 2000;
+    // Messages received but not yet written; at up to a chunk (1 MB) each this bounds the memory they hold
+    static final int DEFAULT_RECEIVE_WINDOW = 32;
+
     private final SimulationClient simulationClient;
     // Track active subscriptions per simulation ID
     private final Map<String, SubscriptionInfo> activeSubscriptions = new ConcurrentHashMap<>();
+    // Sync journal per output directory, with the progress of interrupted transfers and the last checkpoint
+    private final Map<String, SyncJournal> syncJournals = new ConcurrentHashMap<>();
+    // Delta fetches in progress by local path
+    private final Map<String, DeltaRound> pendingDeltas = new ConcurrentHashMap<>();
+    // Received data is written here, off the gRPC callback threads
+    private final DiskWriter diskWriter = new DiskWriter();
+    private volatile boolean deltaUpdates = true;
+    private volatile boolean transcodeVtu = false;
+    private volatile boolean batchSmallFiles = true;
+    private volatile List<String> followPatterns = List.of();
+    private volatile List<String> latestOnlyPatterns = List.of();
+    private volatile TransferClass transferClass = TransferClass.TRANSFER_CLASS_UNSPECIFIED;
+    private volatile int receiveWindow = DEFAULT_RECEIVE_WINDOW;
+    private volatile boolean atomicSteps = true;
+    private volatile BiConsumer<String, Path> stepListener;
     
     private static class SubscriptionInfo {
         final AtomicBoolean active = new AtomicBoolean(false);
         volatile boolean cancelled = false;
+        ChunkedFileAssembler assembler;
+        SyncJournal journal;
+        // Reconnect attempts since the last message received
+        volatile int failures;
+        // Delta updates announced but not yet applied; a checkpoint waits for those before it
+        final Set<CompletableFuture<Void>> deltas = ConcurrentHashMap.newKeySet();
+        // Completes once the last checkpoint received is recorded; only used by the message handler
+        CompletableFuture<Void> lastCheckpoint = CompletableFuture.completedFuture(null);
+    }
+
+    // One delta fetch of a file and the announcements it answers
+    private static final class DeltaRound {
+        // Completed once this round has been applied, or the whole file fetched instead
+        final List<CompletableFuture<Void>> waiting = new ArrayList<>();
+        // Announced while this round ran; they need one more round
+        List<CompletableFuture<Void>> again;
     }
 
     public FileSyncManager(SimulationClient simulationClient) {
         this.simulationClient = simulationClient;
     }
 
+    // If enabled, modified files are patched via GetFileDelta instead of being downloaded again
+    public void setDeltaUpdates(boolean deltaUpdates) {
+        this.deltaUpdates = deltaUpdates;
+    }
+
+    // If enabled, the server converts ASCII VTU files to compressed binary VTU before sending them
+    public void setTranscodeVtu(boolean transcodeVtu) {
+        this.transcodeVtu = transcodeVtu;
+    }
+
+    // If enabled, the server packs small files into batched messages
+    public void setBatchSmallFiles(boolean batchSmallFiles) {
+        this.batchSmallFiles = batchSmallFiles;
+    }
+
+    // Files matching these (e.g. "*.csv") are streamed while they grow; only appended bytes are resent
+    public void setFollowPatterns(List<String> followPatterns) {
+        this.followPatterns = followPatterns != null ? List.copyOf(followPatterns) : List.of();
+    }
+
+    // For files matching these (e.g. "*.vtu"), only the newest time step of each series is synced
+    public void setLatestOnlyPatterns(List<String> latestOnlyPatterns) {
+        this.latestOnlyPatterns = latestOnlyPatterns != null ? List.copyOf(latestOnlyPatterns) : List.of();
+    }
+
+    // If enabled, synced files are forced to disk (in batches) before the sync journal records them
+    public void setSyncToDisk(boolean syncToDisk) {
+        diskWriter.setSyncToDisk(syncToDisk);
+        activeSubscriptions.values().forEach(info -> info.assembler.setSyncToDisk(syncToDisk));
+    }
+
+    // Messages a subscription accepts ahead of the disk; the server waits while all are unwritten
+    public void setReceiveWindow(int receiveWindow) {
+        this.receiveWindow = Math.max(1, receiveWindow);
+    }
+
+    // If enabled, the pieces of a parallel time step arrive together with their .pvtu header
+    public void setAtomicSteps(boolean atomicSteps) {
+        this.atomicSteps = atomicSteps;
+    }
+
+    // Called with the simulation id and the local .pvtu once every file of a step is written
+    public void setStepListener(BiConsumer<String, Path> stepListener) {
+        this.stepListener = stepListener;
+    }
+
+    // BULK lets interactive sessions go first when the server's uplink is saturated
+    public void setTransferClass(TransferClass transferClass) {
+        this.transferClass = transferClass;
+    }
+
     public void startSync(String simulationId, List<String> filePatterns, boolean includeExisting, String clientOutputDirectory) {
         // Stop any existing sync for this simulation first
         stopSync(simulationId);
@@ -46,27 +155,181 @@ public class FileSyncManager {
         System.out.println("FileSyncManager: Starting sync for simulation " + simulationId);
 
         ensureDirectory(clientOutputDirectory);
+        subscriptionInfo.assembler = new ChunkedFileAssembler(filename -> Paths.get(clientOutputDirectory, filename));
+        subscriptionInfo.assembler.setSyncToDisk(diskWriter.isSyncToDisk());
+        subscriptionInfo.journal = journalOf(clientOutputDirectory);
+        subscriptionInfo.journal.setFilePatterns(filePatterns);
         
         // Store the subscription info
         activeSubscriptions.put(simulationId, subscriptionInfo);
 
-        SubscriptionInfo finalSubscriptionInfo = subscriptionInfo;
-        simulationClient.subscribeResults(simulationId, filePatterns, includeExisting, fileData -> {
-            // Check if this subscription was cancelled
-            if (finalSubscriptionInfo.cancelled) {
-                return;
+        subscribe(simulationId, filePatterns, includeExisting, clientOutputDirectory, subscriptionInfo);
+    }
+
+    // Simulation last synced into the directory, or null; lets a restarted client pick up a running simulation
+    public String getJournaledSimulation(String clientOutputDirectory) {
+        return journalOf(clientOutputDirectory).getSimulationId();
+    }
+
+    // Patterns of the sync last run into the directory, so a resumed sync fetches the same files
+    public List<String> getJournaledPatterns(String clientOutputDirectory) {
+        return journalOf(clientOutputDirectory).getFilePatterns();
+    }
+
+    // Opens the subscription; after a transient failure it is opened again until the sync is stopped
+    private void subscribe(String simulationId, List<String> filePatterns, boolean includeExisting,
+                           String clientOutputDirectory, SubscriptionInfo subscriptionInfo) {
+        SyncJournal journal = subscriptionInfo.journal;
+        Map<String, ResumePoint> partials = journal.getPartials();
+        List<ResumePoint> resumePoints = collectResumePoints(clientOutputDirectory, partials);
+        if (!resumePoints.isEmpty()) {
+            logger.info("Resuming {} interrupted transfer(s) for simulation {}", resumePoints.size(), simulationId);
+        }
+        long afterSequence = journal.resumeSequence(simulationId);
+        if (afterSequence > 0) {
+            logger.info("Resuming simulation {} after journal sequence {}", simulationId, afterSequence);
+        }
+
+        // The manifest exchange is a blocking call, so the subscription is opened off the caller's thread
+        CompletableFuture.runAsync(() -> {
+            SubscribeResultsRequest.Builder request = SubscribeResultsRequest.newBuilder()
+                    .setSimulationId(simulationId)
+                    .addAllFilePatterns(filePatterns)
+                    .setIncludeExisting(includeExisting)
+                    .addAllResumePoints(resumePoints)
+                    .setDeltaUpdates(deltaUpdates)
+                    .setTranscodeVtu(transcodeVtu)
+                    .setBatchSmallFiles(batchSmallFiles)
+                    .addAllFollowPatterns(followPatterns)
+                    .addAllLatestOnlyPatterns(latestOnlyPatterns)
+                    .setTransferClass(transferClass)
+                    .setAtomicSteps(atomicSteps)
+                    .setAfterSequence(afterSequence)
+                    .setJournalEpoch(journal.resumeEpoch(simulationId));
+            if (includeExisting || afterSequence > 0) {
+                // Files in the sync journal are offered without hashing them; only without a
+                // journal are the local files compared with the server's manifest
+                List<HaveFile> haveFiles = journal.hasNoFiles() && includeExisting
+                        ? collectHaveFiles(simulationId, filePatterns, clientOutputDirectory, partials)
+                        : journal.haveFiles();
+                if (!haveFiles.isEmpty()) {
+                    logger.info("Skipping {} already synced file(s) for simulation {}", haveFiles.size(), simulationId);
+                }
+                request.addAllHaveFiles(haveFiles);
             }
-            try {
-                writeFile(clientOutputDirectory, fileData);
-            } catch (IOException e) {
-                logger.error("Failed to write synced file", e);
+            if (subscriptionInfo.cancelled) {
+                return;
             }
-        }, t -> {
-            logger.warn("File sync subscription ended for simulation {}: {}", simulationId, t.getMessage());
-            System.out.println("FileSyncManager: Sync ended for simulation " + simulationId + ": " + t.getMessage());
-            finalSubscriptionInfo.active.set(false);
-            // Clean up the entry when subscription ends
-            activeSubscriptions.remove(simulationId);
+            // Each message is released once written, which lets the next one in
+            simulationClient.subscribeResults(request.build(), receiveWindow, (fileData, done) -> {
+                // Check if this subscription was cancelled
+                if (subscriptionInfo.cancelled) {
+                    done.run();
+                    return;
+                }
+                subscriptionInfo.failures = 0;
+                if (fileData.hasStepComplete()) {
+                    // The step's files were sent before it; they are complete once written
+                    Path header = Paths.get(clientOutputDirectory, fileData.getStepComplete().getHeader());
+                    diskWriter.barrier(() -> {
+                        logger.debug("Time step {} of simulation {} complete with {} pieces", header.getFileName(),
+                                simulationId, fileData.getStepComplete().getPiecesCount());
+                        BiConsumer<String, Path> listener = stepListener;
+                        if (listener != null) {
+                            listener.accept(simulationId, header);
+                        }
+                        done.run();
+                    });
+                    return;
+                }
+                if (fileData.getFilename().isEmpty() && !fileData.hasBatch()) {
+                    // Checkpoint: every file up to this sequence has been received, and is on disk
+                    // once the writes queued before it are done and the deltas announced before it
+                    // applied; checkpoints are recorded in order
+                    CompletableFuture<Void> recorded = new CompletableFuture<>();
+                    Runnable record = () -> diskWriter.barrier(() -> {
+                        journal.checkpoint(simulationId, fileData.getJournalEpoch(), fileData.getSequence());
+                        journal.saveIfDue(0);
+                        if (fileData.getSimulationFinished()) {
+                            logger.info("All results of simulation {} synced", simulationId);
+                        }
+                        done.run();
+                        recorded.complete(null);
+                    });
+                    List<CompletableFuture<Void>> before = new ArrayList<>(subscriptionInfo.deltas);
+                    before.add(subscriptionInfo.lastCheckpoint);
+                    subscriptionInfo.lastCheckpoint = recorded;
+                    CompletableFuture<Void> ready = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]));
+                    if (ready.isDone()) {
+                        record.run();
+                    } else {
+                        // Not on the lane that completes it, which may not wait for itself
+                        ready.thenRunAsync(record);
+                    }
+                    return;
+                }
+                if (fileData.getDeltaAvailable()) {
+                    String filename = fileData.getFilename();
+                    // Held until the delta is applied, so the window keeps it in flight meanwhile
+                    CompletableFuture<Void> applied = new CompletableFuture<>();
+                    subscriptionInfo.deltas.add(applied);
+                    applied.whenComplete((result, error) -> {
+                        subscriptionInfo.deltas.remove(applied);
+                        done.run();
+                    });
+                    diskWriter.submit(filename, () -> {
+                        journal.forget(filename);
+                        requestDelta(simulationId, Paths.get(clientOutputDirectory, filename), applied);
+                    });
+                    return;
+                }
+                if (fileData.hasBatch()) {
+                    // Each file of a batch is written on the lane of its name, in order with its other messages
+                    AtomicInteger remaining = new AtomicInteger(fileData.getBatch().getEntriesCount());
+                    Runnable entryDone = () -> {
+                        if (remaining.decrementAndGet() == 0) done.run();
+                    };
+                    if (remaining.get() == 0) done.run();
+                    for (BatchEntry entry : fileData.getBatch().getEntriesList()) {
+                        ByteString content = ChunkedFileAssembler.sliceOf(fileData, entry);
+                        diskWriter.submit(entry.getFilename(), () -> {
+                            subscriptionInfo.assembler.writeWhole(entry.getFilename(), content);
+                            fileWritten(journal, clientOutputDirectory, entry.getFilename(), content.size());
+                        }, entryDone);
+                    }
+                    return;
+                }
+                diskWriter.submit(fileData.getFilename(), () -> {
+                    writeFile(subscriptionInfo.assembler, journal, clientOutputDirectory, fileData);
+                    recordProgress(partials, fileData);
+                }, done);
+            }, t -> {
+                // Partial files are closed once the writes already queued for them are done
+                diskWriter.barrier(() -> {
+                    subscriptionInfo.assembler.close();
+                    journal.save();
+                });
+                if (subscriptionInfo.cancelled) {
+                    return;
+                }
+                int failures = ++subscriptionInfo.failures;
+                if (isTransient(t) && failures <= MAX_RECONNECT_ATTEMPTS) {
+                    long delay = reconnectDelayMs(failures);
+                    logger.warn("File sync subscription for simulation {} failed ({}), reconnecting in {} ms (attempt {})",
+                            simulationId, t.getMessage(), delay, failures);
+                    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+                        if (!subscriptionInfo.cancelled) {
+                            subscribe(simulationId, filePatterns, includeExisting, clientOutputDirectory, subscriptionInfo);
+                        }
+                    });
+                    return;
+                }
+                logger.warn("File sync subscription ended for simulation {}: {}", simulationId, t.getMessage());
+                System.out.println("FileSyncManager: Sync ended for simulation " + simulationId + ": " + t.getMessage());
+                subscriptionInfo.active.set(false);
+                // Clean up the entry when subscription ends
+                activeSubscriptions.remove(simulationId, subscriptionInfo);
+            });
         });
     }
     
@@ -75,16 +338,51 @@ public class FileSyncManager {
         if (subscriptionInfo != null) {
             subscriptionInfo.active.set(false);
             subscriptionInfo.cancelled = true;
+            diskWriter.barrier(() -> {
+                subscriptionInfo.assembler.close();
+                subscriptionInfo.journal.save();
+            });
             logger.info("Stopped sync for simulation: {}", simulationId);
             System.out.println("FileSyncManager: Stopped sync for simulation " + simulationId);
         }
     }
     
+    /** Stops all syncs and finishes the writes already received. */
+    public void close() {
+        new ArrayList<>(activeSubscriptions.keySet()).forEach(this::stopSync);
+        diskWriter.close();
+    }
+    
     public boolean isSyncing(String simulationId) {
         SubscriptionInfo subscriptionInfo = activeSubscriptions.get(simulationId);
         return subscriptionInfo != null && subscriptionInfo.active.get();
     }
 
+    private SyncJournal journalOf(String dir) {
+        Path directory = Paths.get(dir).toAbsolutePath();
+        return syncJournals.computeIfAbsent(directory.toString(), key -> SyncJournal.load(directory));
+    }
+
+    // Failures a new attempt may get past; others, such as an unknown simulation, end the sync
+    private static boolean isTransient(Throwable t) {
+        switch (Status.fromThrowable(t).getCode()) {
+            case UNAVAILABLE:
+            case DEADLINE_EXCEEDED:
+            case RESOURCE_EXHAUSTED:
+            // A result file changed while it was sent; a new attempt fetches the new version
+            case ABORTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Equal jitter, so clients cut off together do not all come back at the same moment
+    private static long reconnectDelayMs(int failures) {
+        long delay = Math.min(MAX_RECONNECT_DELAY_MS, INITIAL_RECONNECT_DELAY_MS << Math.min(failures - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
     private void ensureDirectory(String dir) {
         try {
             Files.createDirectories(Paths.get(dir));
@@ -93,13 +391,235 @@ public class FileSyncManager {
         }
     }
 
-    private void writeFile(String baseDir, FileData fileData) throws IOException {
-        Path outPath = Paths.get(baseDir, fileData.getFilename());
-        File outFile = outPath.toFile();
-        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-            fos.write(fileData.getContent().toByteArray());
+    // Completes applied once the file is up to date again, by delta or by fetching it whole
+    private void requestDelta(String simulationId, Path target, CompletableFuture<Void> applied) {
+        String key = target.toAbsolutePath().toString();
+        // One delta per file at a time; a change announced meanwhile triggers one more round
+        boolean[] start = {false};
+        pendingDeltas.compute(key, (k, round) -> {
+            if (round == null) {
+                start[0] = true;
+                round = new DeltaRound();
+                round.waiting.add(applied);
+            } else {
+                if (round.again == null) round.again = new ArrayList<>();
+                round.again.add(applied);
+            }
+            return round;
+        });
+        if (start[0]) {
+            fetchDelta(simulationId, target, key);
+        }
+    }
+
+    private void fetchDelta(String simulationId, Path target, String key) {
+        FileDeltaRequest.Builder request = FileDeltaRequest.newBuilder()
+                .setSimulationId(simulationId)
+                .setFilename(target.getFileName().toString());
+        DeltaSync.Patcher patcher;
+        try {
+            long localSize = Files.isRegularFile(target) ? Files.size(target) : 0;
+            int blockSize = DeltaSync.blockSizeFor(localSize);
+            request.setBlockSize(blockSize);
+            if (localSize > 0) {
+                for (DeltaSync.BlockSignature signature : DeltaSync.signatures(target, blockSize)) {
+                    request.addBlocks(BlockSignature.newBuilder()
+                            .setWeak(signature.weak)
+                            .setStrong(ByteString.copyFrom(signature.strong))
+                            .build());
+                }
+            }
+            patcher = new DeltaSync.Patcher(target, blockSize, target);
+        } catch (IOException e) {
+            logger.error("Failed to prepare delta update for {}", target, e);
+            fetchWhole(simulationId, target, () -> finishDelta(simulationId, target, key));
+            return;
+        }
+
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicBoolean finished = new AtomicBoolean(false);
+        long[] literalBytes = {0};
+        String filename = target.getFileName().toString();
+        // Applied on the file's writer lane, after any write of it received earlier; each
+        // operation is released once applied
+        simulationClient.getFileDelta(request.build(), receiveWindow, (delta, done) -> diskWriter.submit(filename, () -> {
+            if (failed.get()) {
+                return;
+            }
+            try {
+                switch (delta.getOpCase()) {
+                    case COPY_BLOCK:
+                        patcher.copyBlock(delta.getCopyBlock());
+                        break;
+                    case LITERAL:
+                        literalBytes[0] += delta.getLiteral().size();
+                        patcher.literal(delta.getLiteral().asReadOnlyByteBuffer());
+                        break;
+                    default:
+                        break;
+                }
+                if (delta.getLast()) {
+                    patcher.finish(delta.getTotalSize(), diskWriter.isSyncToDisk());
+                    SyncJournal journal = journalOf(target.getParent().toString());
+                    diskWriter.written(target, () -> journal.fileReceived(filename));
+                    finished.set(true);
+                    logger.debug("Updated file via delta: {} ({} bytes, {} transferred)",
+                            target, delta.getTotalSize(), literalBytes[0]);
+                }
+            } catch (IOException e) {
+                failed.set(true);
+                logger.error("Failed to apply delta to {}", target, e);
+                closeQuietly(patcher);
+            }
+        }, done), () -> diskWriter.submit(filename, () -> {
+            closeQuietly(patcher);
+            if (finished.get()) {
+                finishDelta(simulationId, target, key);
+            } else {
+                fetchWhole(simulationId, target, () -> finishDelta(simulationId, target, key));
+            }
+        }), t -> diskWriter.submit(filename, () -> {
+            closeQuietly(patcher);
+            fetchWhole(simulationId, target, () -> finishDelta(simulationId, target, key));
+        }));
+    }
+
+    // The delta could not be applied, so the local copy is replaced by the whole file
+    private void fetchWhole(String simulationId, Path target, Runnable then) {
+        String filename = target.getFileName().toString();
+        String baseDir = target.getParent().toString();
+        SyncJournal journal = journalOf(baseDir);
+        ChunkedFileAssembler assembler = new ChunkedFileAssembler(name -> target);
+        assembler.setSyncToDisk(diskWriter.isSyncToDisk());
+        AtomicBoolean complete = new AtomicBoolean(false);
+        logger.info("Fetching {} in full after its delta update failed", target);
+        simulationClient.getSimulationResults(simulationId, List.of(filename), fileData -> diskWriter.submit(filename, () -> {
+            if (filename.equals(fileData.getFilename()) && writeFile(assembler, journal, baseDir, fileData)) {
+                complete.set(true);
+            }
+        }), () -> diskWriter.submit(filename, () -> {
+            assembler.close();
+            if (!complete.get()) {
+                logger.error("{} was not sent in full; it stays outdated until it changes again", target);
+            }
+        }, then), t -> diskWriter.submit(filename, () -> {
+            assembler.close();
+            logger.error("Failed to fetch {}; it stays outdated until it changes again: {}", target, t.getMessage());
+        }, then));
+    }
+
+    private void finishDelta(String simulationId, Path target, String key) {
+        DeltaRound[] finished = {null};
+        DeltaRound rerun = pendingDeltas.compute(key, (k, round) -> {
+            finished[0] = round;
+            if (round.again == null) {
+                return null;
+            }
+            DeltaRound next = new DeltaRound();
+            next.waiting.addAll(round.again);
+            return next;
+        });
+        finished[0].waiting.forEach(applied -> applied.complete(null));
+        if (rerun != null) {
+            fetchDelta(simulationId, target, key);
+        }
+    }
+
+    private static void closeQuietly(DeltaSync.Patcher patcher) {
+        try {
+            patcher.close();
+        } catch (IOException e) {
+            logger.debug("Failed to discard delta temp file", e);
         }
-        logger.info("Synced file: {} ({} bytes)", outPath, fileData.getContent().size());
+    }
+
+    // Local files that match the server's manifest by size and content hash
+    private List<HaveFile> collectHaveFiles(String simulationId, List<String> filePatterns, String baseDir,
+                                            Map<String, ResumePoint> partials) {
+        List<HaveFile> haveFiles = new ArrayList<>();
+        for (ResultFileInfo info : simulationClient.listResultFiles(simulationId, filePatterns)) {
+            if (partials.containsKey(info.getFilename())) {
+                continue;
+            }
+            Path localPath = Paths.get(baseDir, info.getFilename());
+            try {
+                // Comparing sizes first avoids hashing local files that obviously differ
+                if (Files.isRegularFile(localPath) && Files.size(localPath) == info.getSize()) {
+                    String localHash = FileHashes.sha256Hex(localPath);
+                    if (localHash.equalsIgnoreCase(info.getSha256())) {
+                        haveFiles.add(HaveFile.newBuilder()
+                                .setFilename(info.getFilename())
+                                .setSha256(localHash)
+                                .build());
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Cannot hash local file {}", localPath, e);
+            }
+        }
+        return haveFiles;
+    }
+
+    // Only offers resume points whose partial file is still on disk with at least the recorded bytes
+    private List<ResumePoint> collectResumePoints(String baseDir, Map<String, ResumePoint> partials) {
+        List<ResumePoint> points = new ArrayList<>();
+        partials.values().removeIf(point -> {
+            Path partialPath = ChunkedFileAssembler.partialPathOf(Paths.get(baseDir, point.getFilename()));
+            try {
+                if (Files.isRegularFile(partialPath) && Files.size(partialPath) >= point.getOffset()) {
+                    points.add(point);
+                    return false;
+                }
+            } catch (IOException e) {
+                logger.debug("Cannot inspect partial file {}", partialPath, e);
+            }
+            return true;
+        });
+        return points;
+    }
+
+    private void recordProgress(Map<String, ResumePoint> partials, FileData fileData) {
+        if (!fileData.hasChunk()) {
+            return;
+        }
+        FileChunk chunk = fileData.getChunk();
+        if (chunk.getLast()) {
+            partials.remove(fileData.getFilename());
+        } else {
+            partials.put(fileData.getFilename(), ResumePoint.newBuilder()
+                    .setFilename(fileData.getFilename())
+                    .setOffset(chunk.getOffset() + fileData.getContent().size())
+                    .setExpectedSize(chunk.getTotalSize())
+                    .setExpectedMtimeMs(chunk.getLastModifiedMs())
+                    .build());
+        }
+    }
+
+    // Runs on the file's writer lane; true if the file is complete
+    private boolean writeFile(ChunkedFileAssembler assembler, SyncJournal journal, String baseDir, FileData fileData) throws IOException {
+        if (!assembler.write(fileData)) {
+            return false;
+        }
+        if (fileData.getChunk().getAppend()) {
+            // Followed files change too often to be hashed; they are resent in full after a restart
+            journal.forget(fileData.getFilename());
+            logger.debug("Appended to followed file: {} (now {} bytes)", Paths.get(baseDir, fileData.getFilename()),
+                    fileData.getChunk().getTotalSize());
+            return true;
+        }
+        long size = fileData.hasChunk() ? fileData.getChunk().getTotalSize() : fileData.getContent().size();
+        fileWritten(journal, baseDir, fileData.getFilename(), size);
+        return true;
+    }
+
+    // A complete file is in place; the journal records it once it is durable
+    private void fileWritten(SyncJournal journal, String baseDir, String filename, long size) {
+        Path outPath = Paths.get(baseDir, filename);
+        diskWriter.written(outPath, () -> {
+            journal.fileReceived(filename);
+            journal.saveIfDue(JOURNAL_SAVE_INTERVAL_MS);
+        });
+        logger.debug("Synced file: {} ({} bytes)", outPath, size);
     }
 }
 
@@ -18,6 +18,7 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.geometry.Pos;
 import com.jpro.webapi.WebAPI;
+import com.simlab.ug.common.FilePatternSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -570,12 +571,12 @@ public class ResultsTabController {
         if (currentOutputDirectory == null) return;
         
         group.clearFiles();
-        String pattern = group.getPattern().replace("*", ".*");
+        FilePatternSet pattern = FilePatternSet.of(group.getPattern());
         
-        try {
-            Files.walk(currentOutputDirectory)
+        try (java.util.stream.Stream<Path> walk = Files.walk(currentOutputDirectory)) {
+            walk
                 .filter(path -> path.toString().toLowerCase().endsWith(".vtu"))
-                .filter(path -> path.getFileName().toString().matches(pattern))
+                .filter(pattern::matches)
                 .forEach(path -> {
                     group.addFile(new VtuFileGroup.VtuFile(
                         path.getFileName().toString(),
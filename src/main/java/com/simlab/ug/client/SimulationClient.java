@@ -1,9 +1,13 @@
 package com.simlab.ug.client;
 
+import com.simlab.ug.common.ZstdCodec;
 import com.simlab.ug.grpc.*;
+import io.grpc.DecompressorRegistry;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +15,8 @@ import org.slf4j.LoggerFactory;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class SimulationClient {
@@ -29,8 +35,14 @@ public class SimulationClient {
     }
     
     public SimulationClient(String host, int port) {
+        // gzip is advertised by default; zstd is added when its native library is available
+        DecompressorRegistry decompressors = DecompressorRegistry.getDefaultInstance();
+        if (ZstdCodec.isAvailable()) {
+            decompressors = decompressors.with(new ZstdCodec(), true);
+        }
         this.channel = ManagedChannelBuilder.forAddress(host, port)
                 .usePlaintext()
+                .decompressorRegistry(decompressors)
                 .build();
         this.blockingStub = SimulationServiceGrpc.newBlockingStub(channel);
         this.asyncStub = SimulationServiceGrpc.newStub(channel);
@@ -147,10 +159,17 @@ public class SimulationClient {
     }
     
     public void getSimulationResults(String simulationId, List<String> filePatterns,
-                                    Consumer<FileData> fileHandler, Runnable onComplete) {
+                                    Consumer<FileData> fileHandler, Runnable onComplete, Consumer<Throwable> onError) {
+        getSimulationResults(simulationId, filePatterns, List.of(), fileHandler, onComplete, onError);
+    }
+    
+    // Either onComplete or onError runs once the call is over; files without their last chunk are incomplete
+    public void getSimulationResults(String simulationId, List<String> filePatterns, List<ResumePoint> resumePoints,
+                                    Consumer<FileData> fileHandler, Runnable onComplete, Consumer<Throwable> onError) {
         GetResultsRequest request = GetResultsRequest.newBuilder()
                 .setSimulationId(simulationId)
                 .addAllFilePatterns(filePatterns)
+                .addAllResumePoints(resumePoints)
                 .build();
         
         asyncStub.getSimulationResults(request, new StreamObserver<FileData>() {
@@ -162,6 +181,27 @@ public class SimulationClient {
             @Override
             public void onError(Throwable t) {
                 logger.error("Error getting simulation results", t);
+                if (onError != null) onError.accept(t);
+            }
+            
+            @Override
+            public void onCompleted() {
+                onComplete.run();
+            }
+        });
+    }
+    
+    /**
+     * Fetches the changes of one file; each delta is handed over with a callback that releases
+     * it, and at most {@code window} are unreleased at a time (see {@link WindowedObserver}).
+     */
+    public void getFileDelta(FileDeltaRequest request, int window, BiConsumer<FileDelta, Runnable> deltaHandler,
+                             Runnable onComplete, Consumer<Throwable> onError) {
+        asyncStub.getFileDelta(request, new WindowedObserver<FileDeltaRequest, FileDelta>(window, deltaHandler) {
+            @Override
+            public void onError(Throwable t) {
+                logger.warn("getFileDelta failed for {}: {}", request.getFilename(), t.getMessage());
+                onError.accept(t);
             }
             
             @Override
@@ -171,6 +211,19 @@ public class SimulationClient {
         });
     }
     
+    // Manifest of the server's result files; empty if the simulation is unknown or the call fails
+    public List<ResultFileInfo> listResultFiles(String simulationId, List<String> filePatterns) {
+        try {
+            return blockingStub.listResultFiles(ListResultFilesRequest.newBuilder()
+                    .setSimulationId(simulationId)
+                    .addAllFilePatterns(filePatterns)
+                    .build()).getFilesList();
+        } catch (StatusRuntimeException e) {
+            logger.warn("Failed to list result files for simulation {}: {}", simulationId, e.getMessage());
+            return List.of();
+        }
+    }
+    
     public void shutdown() {
         try {
             channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
@@ -188,20 +241,14 @@ public class SimulationClient {
         }
     }
 
-    public void subscribeResults(String simulationId, List<String> filePatterns, boolean includeExisting,
-                                 Consumer<FileData> fileHandler, Consumer<Throwable> onError) {
-        SubscribeResultsRequest request = SubscribeResultsRequest.newBuilder()
-                .setSimulationId(simulationId)
-                .addAllFilePatterns(filePatterns)
-                .setIncludeExisting(includeExisting)
-                .build();
-
-        asyncStub.subscribeResults(request, new io.grpc.stub.StreamObserver<FileData>() {
-            @Override
-            public void onNext(FileData value) {
-                fileHandler.accept(value);
-            }
-
+    /**
+     * Subscribes to a simulation's results with a receive window: a consumer that cannot keep
+     * up slows down the server instead of filling the heap; see {@link WindowedObserver}.
+     */
+    public void subscribeResults(SubscribeResultsRequest request, int window,
+                                 BiConsumer<FileData, Runnable> fileHandler, Consumer<Throwable> onError) {
+        String simulationId = request.getSimulationId();
+        asyncStub.subscribeResults(request, new WindowedObserver<SubscribeResultsRequest, FileData>(window, fileHandler) {
             @Override
             public void onError(Throwable t) {
                 logger.error("subscribeResults error for simulation {}", simulationId, t);
@@ -211,8 +258,42 @@ public class SimulationClient {
             @Override
             public void onCompleted() {
                 logger.info("subscribeResults completed for simulation: {}", simulationId);
-                // Stream completed normally (server closed it)
             }
         });
     }
-}
\ No newline at end of file
+
+    /**
+     * Receives a server stream with manual flow control: at most {@code window} messages are
+     * handed out before the handler is done with them. The handler gets each message with a
+     * callback to run, from any thread, once it has finished with it; only then is the next
+     * message read from the network. Until the handler catches up, gRPC's flow control window
+     * fills and the server's sends wait.
+     */
+    private abstract static class WindowedObserver<ReqT, RespT> implements ClientResponseObserver<ReqT, RespT> {
+        private final int window;
+        private final BiConsumer<RespT, Runnable> handler;
+        private ClientCallStreamObserver<ReqT> call;
+
+        WindowedObserver(int window, BiConsumer<RespT, Runnable> handler) {
+            this.window = Math.max(1, window);
+            this.handler = handler;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+            this.call = requestStream;
+            requestStream.disableAutoRequestWithInitial(window);
+        }
+
+        @Override
+        public void onNext(RespT value) {
+            AtomicBoolean done = new AtomicBoolean();
+            handler.accept(value, () -> {
+                // request() may be called from any thread; a message only frees its slot once
+                if (done.compareAndSet(false, true)) {
+                    call.request(1);
+                }
+            });
+        }
+    }
+}
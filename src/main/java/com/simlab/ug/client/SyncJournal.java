@@ -0,0 +1,261 @@
+package com.simlab.ug.client;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.simlab.ug.common.FileHashes;
+import com.simlab.ug.grpc.HaveFile;
+import com.simlab.ug.grpc.ResumePoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a sync has put into one output directory, kept in {@value #FILE_NAME} there so the
+ * sync can pick up where it stopped after a dropped connection or a restart of the client.
+ *
+ * <p>Lists the files received completely with size, modification time and SHA-256, the files
+ * received partly, the file patterns of the sync, and the server's last journal checkpoint for the simulation with the journal's
+ * epoch, since a rerun of the simulation restarts the server's numbering. On
+ * resubscribing, files whose size and modification time are unchanged are offered as have-files
+ * without hashing them again, partial files are resumed, and the server is asked only for events
+ * after the checkpoint.
+ */
+final class SyncJournal {
+    private static final Logger logger = LoggerFactory.getLogger(SyncJournal.class);
+
+    static final String FILE_NAME = ".simlab-sync.json";
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    // Saved form; field names are the JSON keys
+    private static final class State {
+        String simulationId;
+        String epoch;
+        long sequence;
+        List<String> filePatterns = new ArrayList<>();
+        Map<String, FileEntry> files = new TreeMap<>();
+        Map<String, PartialEntry> partial = new TreeMap<>();
+    }
+
+    private static final class FileEntry {
+        long size;
+        long modifiedMs;
+        String sha256;
+    }
+
+    private static final class PartialEntry {
+        long offset;
+        long expectedSize;
+        long expectedMtimeMs;
+    }
+
+    private final Path directory;
+    private final Path file;
+    // Resume points of partly received files; shared with the subscription that updates them
+    private final Map<String, ResumePoint> partials = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private String simulationId;
+    private String epoch;
+    private long sequence;
+    private List<String> filePatterns = List.of();
+    private final Map<String, FileEntry> files = new TreeMap<>();
+    private boolean dirty;
+    private long savedAt;
+
+    private SyncJournal(Path directory) {
+        this.directory = directory;
+        this.file = directory.resolve(FILE_NAME);
+    }
+
+    /** Reads the journal of {@code directory}; an empty one if there is none or it is unreadable. */
+    static SyncJournal load(Path directory) {
+        SyncJournal journal = new SyncJournal(directory);
+        if (!Files.isRegularFile(journal.file)) {
+            return journal;
+        }
+        try (Reader reader = Files.newBufferedReader(journal.file, StandardCharsets.UTF_8)) {
+            State state = GSON.fromJson(reader, State.class);
+            if (state != null) {
+                journal.simulationId = state.simulationId;
+                journal.epoch = state.epoch;
+                journal.sequence = state.sequence;
+                if (state.filePatterns != null) {
+                    journal.filePatterns = List.copyOf(state.filePatterns);
+                }
+                if (state.files != null) {
+                    journal.files.putAll(state.files);
+                }
+                if (state.partial != null) {
+                    state.partial.forEach((filename, entry) -> journal.partials.put(filename, ResumePoint.newBuilder()
+                            .setFilename(filename)
+                            .setOffset(entry.offset)
+                            .setExpectedSize(entry.expectedSize)
+                            .setExpectedMtimeMs(entry.expectedMtimeMs)
+                            .build()));
+                }
+            }
+        } catch (IOException | JsonParseException e) {
+            logger.warn("Ignoring unreadable sync journal {}: {}", journal.file, e.getMessage());
+        }
+        return journal;
+    }
+
+    /** Simulation the checkpoint belongs to, or null. */
+    synchronized String getSimulationId() {
+        return simulationId;
+    }
+
+    /** Sequence to resume {@code simulationId} after; 0 if the checkpoint is of another simulation. */
+    synchronized long resumeSequence(String simulationId) {
+        return simulationId.equals(this.simulationId) ? sequence : 0;
+    }
+
+    /** Patterns of the sync into this directory; empty if none was recorded. */
+    synchronized List<String> getFilePatterns() {
+        return filePatterns;
+    }
+
+    synchronized void setFilePatterns(List<String> filePatterns) {
+        if (!filePatterns.equals(this.filePatterns)) {
+            this.filePatterns = List.copyOf(filePatterns);
+            dirty = true;
+        }
+    }
+
+    /** Epoch of the server journal the resume sequence belongs to; empty if there is none. */
+    synchronized String resumeEpoch(String simulationId) {
+        return simulationId.equals(this.simulationId) && epoch != null ? epoch : "";
+    }
+
+    /**
+     * Records the server's checkpoint: every event of {@code simulationId} up to {@code sequence}
+     * of the journal {@code epoch} is here.
+     */
+    synchronized void checkpoint(String simulationId, String epoch, long sequence) {
+        if (!simulationId.equals(this.simulationId) || !epoch.equals(this.epoch) || sequence != this.sequence) {
+            this.simulationId = simulationId;
+            this.epoch = epoch;
+            this.sequence = sequence;
+            dirty = true;
+        }
+    }
+
+    /** Resume points of partly received files, updated in place by the subscription. */
+    Map<String, ResumePoint> getPartials() {
+        return partials;
+    }
+
+    /** Records that {@code filename} was received completely; hashes the local copy. */
+    void fileReceived(String filename) {
+        Path local = directory.resolve(filename);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(local, BasicFileAttributes.class);
+            FileEntry entry = new FileEntry();
+            entry.size = attrs.size();
+            entry.modifiedMs = attrs.lastModifiedTime().toMillis();
+            entry.sha256 = FileHashes.sha256Hex(local);
+            synchronized (this) {
+                files.put(filename, entry);
+                dirty = true;
+            }
+        } catch (IOException e) {
+            logger.debug("Cannot record synced file {}", local, e);
+            forget(filename);
+        }
+    }
+
+    /** Forgets the contents of {@code filename}, e.g. while it is being appended to. */
+    synchronized void forget(String filename) {
+        if (files.remove(filename) != null) {
+            dirty = true;
+        }
+    }
+
+    /** True if no complete file has been recorded. */
+    synchronized boolean hasNoFiles() {
+        return files.isEmpty();
+    }
+
+    /**
+     * Recorded files that are still on disk unchanged, as have-files. Costs one stat per file;
+     * nothing is hashed.
+     */
+    synchronized List<HaveFile> haveFiles() {
+        List<HaveFile> haveFiles = new ArrayList<>();
+        files.entrySet().removeIf(recorded -> {
+            String filename = recorded.getKey();
+            FileEntry entry = recorded.getValue();
+            if (partials.containsKey(filename)) {
+                return false;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(directory.resolve(filename), BasicFileAttributes.class);
+                if (attrs.size() == entry.size && attrs.lastModifiedTime().toMillis() == entry.modifiedMs) {
+                    haveFiles.add(HaveFile.newBuilder().setFilename(filename).setSha256(entry.sha256).build());
+                    return false;
+                }
+            } catch (IOException e) {
+                // Deleted locally
+            }
+            dirty = true;
+            return true;
+        });
+        return haveFiles;
+    }
+
+    /**
+     * Saves if anything changed, or transfers are in progress, and the last save is at least
+     * {@code minIntervalMs} ago.
+     */
+    void saveIfDue(long minIntervalMs) {
+        synchronized (this) {
+            if ((!dirty && partials.isEmpty()) || System.currentTimeMillis() - savedAt < minIntervalMs) {
+                return;
+            }
+        }
+        save();
+    }
+
+    /** Writes the journal atomically, so a crash leaves either the old or the new version. */
+    synchronized void save() {
+        State state = new State();
+        state.simulationId = simulationId;
+        state.epoch = epoch;
+        state.sequence = sequence;
+        state.filePatterns.addAll(filePatterns);
+        state.files.putAll(files);
+        partials.forEach((filename, point) -> {
+            PartialEntry entry = new PartialEntry();
+            entry.offset = point.getOffset();
+            entry.expectedSize = point.getExpectedSize();
+            entry.expectedMtimeMs = point.getExpectedMtimeMs();
+            state.partial.put(filename, entry);
+        });
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                GSON.toJson(state, writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            savedAt = System.currentTimeMillis();
+        } catch (IOException e) {
+            logger.warn("Failed to save sync journal {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.simlab.ug.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rsync-style delta transfer of a modified file.
+ *
+ * <p>The receiver splits its copy into fixed-size blocks and sends a weak rolling checksum and
+ * a strong hash for each ({@link #signatures}). The sender slides a window over the new version
+ * of the file and emits "copy block N" for every window that matches a receiver block and
+ * literal bytes for everything else ({@link #delta}). The receiver rebuilds the new version from
+ * its old copy and the literals ({@link Patcher}). Only the changed regions travel over the wire.
+ */
+public final class DeltaSync {
+
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    // Literal runs are flushed at this size so they fit into one message
+    private static final int MAX_LITERAL = 64 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private DeltaSync() {}
+
+    /** Signature of one full block of the receiver's copy. */
+    public static final class BlockSignature {
+        public final int weak;
+        public final byte[] strong;
+
+        public BlockSignature(int weak, byte[] strong) {
+            this.weak = weak;
+            this.strong = strong;
+        }
+    }
+
+    /** Receives the instructions produced by {@link #delta}. */
+    public interface DeltaSink {
+        void copyBlock(int blockIndex) throws IOException;
+
+        void literal(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /** Block size for a file of the given length: about its square root, as rsync does. */
+    public static int blockSizeFor(long fileSize) {
+        long size = (long) Math.sqrt((double) Math.max(fileSize, 0));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /** Signatures of every full block of {@code file}; a trailing partial block is not indexed. */
+    public static List<BlockSignature> signatures(Path file, int blockSize) throws IOException {
+        List<BlockSignature> result = new ArrayList<>();
+        MessageDigest md5 = newMd5();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = Files.newInputStream(file)) {
+            while (in.readNBytes(block, 0, blockSize) == blockSize) {
+                result.add(new BlockSignature(weakChecksum(block, 0, blockSize), md5.digest(block)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the instructions that turn the receiver's copy (described by {@code basis})
+     * into {@code source}. Memory use is bounded by a few blocks plus one literal run.
+     */
+    public static void delta(Path source, int blockSize, List<BlockSignature> basis, DeltaSink sink) throws IOException {
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        for (int i = 0; i < basis.size(); i++) {
+            blocksByWeak.computeIfAbsent(basis.get(i).weak, w -> new ArrayList<>(1)).add(i);
+        }
+        MessageDigest md5 = newMd5();
+        byte[] buf = new byte[MAX_LITERAL + 2 * blockSize + READ_SIZE];
+
+        try (InputStream in = Files.newInputStream(source)) {
+            int end = 0;          // valid bytes in buf
+            int pos = 0;          // start of the current window
+            int literalStart = 0; // start of the pending literal run
+            boolean eof = false;
+            boolean haveWeak = false;
+            int weak = 0;
+
+            while (true) {
+                // Need a full window plus one byte beyond it for rolling
+                if (pos + blockSize >= end && !eof) {
+                    int shift = literalStart;
+                    System.arraycopy(buf, shift, buf, 0, end - shift);
+                    end -= shift;
+                    pos -= shift;
+                    literalStart = 0;
+                    int n = in.readNBytes(buf, end, buf.length - end);
+                    end += n;
+                    eof = n == 0 || end < buf.length;
+                }
+                if (pos + blockSize > end) {
+                    break;
+                }
+
+                if (!haveWeak) {
+                    weak = weakChecksum(buf, pos, blockSize);
+                    haveWeak = true;
+                }
+
+                List<Integer> candidates = blocksByWeak.get(weak);
+                if (candidates != null) {
+                    md5.update(buf, pos, blockSize);
+                    byte[] strong = md5.digest();
+                    int match = -1;
+                    for (int index : candidates) {
+                        if (Arrays.equals(strong, basis.get(index).strong)) {
+                            match = index;
+                            break;
+                        }
+                    }
+                    if (match >= 0) {
+                        if (pos > literalStart) {
+                            sink.literal(buf, literalStart, pos - literalStart);
+                        }
+                        sink.copyBlock(match);
+                        pos += blockSize;
+                        literalStart = pos;
+                        haveWeak = false;
+                        continue;
+                    }
+                }
+
+                if (pos + blockSize >= end) {
+                    // End of input: the remaining bytes go out as a literal
+                    break;
+                }
+                weak = rollChecksum(weak, buf[pos], buf[pos + blockSize], blockSize);
+                pos++;
+                if (pos - literalStart >= MAX_LITERAL) {
+                    sink.literal(buf, literalStart, pos - literalStart);
+                    literalStart = pos;
+                }
+            }
+
+            int offset = literalStart;
+            while (offset < end) {
+                int length = Math.min(MAX_LITERAL, end - offset);
+                sink.literal(buf, offset, length);
+                offset += length;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a file from the receiver's old copy and delta instructions. The result is
+     * written to a temporary file next to the target and moved into place by {@link #finish}.
+     */
+    public static final class Patcher implements Closeable {
+        private final FileChannel basis;
+        private final int blockSize;
+        private final Path target;
+        private final Path temp;
+        private final FileChannel out;
+        private final ByteBuffer blockBuffer;
+        private boolean finished;
+
+        /** @param basis the receiver's old copy, or null if it has none */
+        public Patcher(Path basis, int blockSize, Path target) throws IOException {
+            this.basis = basis != null && Files.isRegularFile(basis)
+                    ? FileChannel.open(basis, StandardOpenOption.READ) : null;
+            this.blockSize = blockSize;
+            this.target = target;
+            this.temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".delta");
+            this.out = FileChannel.open(temp, StandardOpenOption.WRITE);
+            this.blockBuffer = ByteBuffer.allocate(blockSize);
+        }
+
+        public void copyBlock(int blockIndex) throws IOException {
+            if (basis == null) {
+                throw new IOException("Delta references block " + blockIndex + " but there is no basis file");
+            }
+            blockBuffer.clear();
+            long position = (long) blockIndex * blockSize;
+            while (blockBuffer.hasRemaining()) {
+                if (basis.read(blockBuffer, position + blockBuffer.position()) < 0) {
+                    throw new IOException("Basis file is shorter than block " + blockIndex);
+                }
+            }
+            blockBuffer.flip();
+            writeFully(blockBuffer);
+        }
+
+        public void literal(ByteBuffer data) throws IOException {
+            writeFully(data);
+        }
+
+        /** Checks the rebuilt size and replaces the target with the rebuilt file. */
+        public void finish(long expectedSize) throws IOException {
+            finish(expectedSize, false);
+        }
+
+        /** Like {@link #finish(long)}; if {@code durable}, the rebuilt file is forced to disk before it replaces the target. */
+        public void finish(long expectedSize, boolean durable) throws IOException {
+            long size = out.size();
+            if (durable) {
+                out.force(true);
+            }
+            closeChannels();
+            if (size != expectedSize) {
+                throw new IOException("Rebuilt " + target.getFileName() + " has " + size
+                        + " bytes, expected " + expectedSize);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                closeChannels();
+            } finally {
+                if (!finished) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        }
+
+        private void closeChannels() throws IOException {
+            try {
+                out.close();
+            } finally {
+                if (basis != null) basis.close();
+            }
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+        }
+    }
+
+    // Rsync's rolling checksum: a = sum of bytes, b = sum of prefix sums, both mod 2^16
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+    }
+
+    static int rollChecksum(int weak, byte out, byte in, int blockSize) {
+        int a = weak & 0xFFFF;
+        int b = (weak >>> 16) & 0xFFFF;
+        int x = out & 0xFF;
+        a = (a - x + (in & 0xFF)) & 0xFFFF;
+        b = (b - blockSize * x + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.simlab.ug.common;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A set of file name globs such as {@code *.vtu} or {@code *sol_*.vtu}, compiled once and
+ * matched against file names (not whole paths).
+ *
+ * <p>Globs whose only wildcard is {@code *} are matched by comparing their literal parts in
+ * order, without regular expressions; a {@code .} is an ordinary character. Globs using
+ * {@code ?}, {@code [...]} or <code>{a,b}</code> fall back to the platform's glob
+ * {@link PathMatcher}. An empty set matches every file.
+ */
+public final class FilePatternSet {
+
+    private static final FilePatternSet ALL = new FilePatternSet(List.of());
+
+    private interface Glob {
+        boolean matches(String name);
+    }
+
+    private final List<Glob> globs;
+
+    private FilePatternSet(List<Glob> globs) {
+        this.globs = globs;
+    }
+
+    /** Compiles {@code patterns}; null or empty means "all files". Blank patterns are ignored. */
+    public static FilePatternSet of(Collection<String> patterns) {
+        if (patterns == null || patterns.isEmpty()) {
+            return ALL;
+        }
+        List<Glob> globs = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            if (pattern != null && !pattern.isBlank()) {
+                globs.add(compile(pattern.trim()));
+            }
+        }
+        return globs.isEmpty() ? ALL : new FilePatternSet(List.copyOf(globs));
+    }
+
+    public static FilePatternSet of(String... patterns) {
+        return of(Arrays.asList(patterns));
+    }
+
+    /** True if this set matches every file. */
+    public boolean matchesAll() {
+        return globs.isEmpty();
+    }
+
+    public boolean matches(String filename) {
+        if (globs.isEmpty()) {
+            return true;
+        }
+        for (Glob glob : globs) {
+            if (glob.matches(filename)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Matches the file name of {@code path}. */
+    public boolean matches(Path path) {
+        Path name = path.getFileName();
+        return name != null && matches(name.toString());
+    }
+
+    private static Glob compile(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("?[{\\".indexOf(pattern.charAt(i)) >= 0) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                return name -> matcher.matches(Paths.get(name));
+            }
+        }
+        int star = pattern.indexOf('*');
+        if (star < 0) {
+            return pattern::equals;
+        }
+        if (star == 0 && pattern.indexOf('*', 1) < 0) {
+            // The common case, e.g. *.vtu
+            String suffix = pattern.substring(1);
+            return name -> name.endsWith(suffix);
+        }
+        return new StarGlob(pattern.split("\\*", -1));
+    }
+
+    // Literal parts between the stars; the first is a prefix, the last a suffix, the rest must appear in order
+    private static final class StarGlob implements Glob {
+        private final String[] parts;
+        private final int minLength;
+
+        StarGlob(String[] parts) {
+            this.parts = parts;
+            int length = 0;
+            for (String part : parts) {
+                length += part.length();
+            }
+            this.minLength = length;
+        }
+
+        @Override
+        public boolean matches(String name) {
+            if (name.length() < minLength) return false;
+            String first = parts[0];
+            String last = parts[parts.length - 1];
+            if (!name.startsWith(first) || !name.endsWith(last)) return false;
+            int from = first.length();
+            int end = name.length() - last.length();
+            for (int i = 1; i < parts.length - 1; i++) {
+                int at = name.indexOf(parts[i], from);
+                if (at < 0 || at + parts[i].length() > end) return false;
+                from = at + parts[i].length();
+            }
+            return true;
+        }
+    }
+}
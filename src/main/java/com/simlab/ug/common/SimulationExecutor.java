@@ -10,6 +10,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -26,7 +27,7 @@ public class SimulationExecutor {
     private final String workingDirectory;
     private final String outputDirectory;
     
-    private Process process;
+    private volatile Process process;
     private SimulationState state = SimulationState.PENDING;
     private double progress = 0.0;
     private long startTime;
@@ -275,6 +276,12 @@ public class SimulationExecutor {
         return scriptPath;
     }
     
+    // Handle of the running UG4 process, e.g. to find the files it still has open
+    public Optional<ProcessHandle> getProcessHandle() {
+        Process p = process;
+        return p != null && p.isAlive() ? Optional.of(p.toHandle()) : Optional.empty();
+    }
+    
     public String getOutputDirectory() {
         return outputDirectory;
     }
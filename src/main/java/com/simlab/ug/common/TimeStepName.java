@@ -0,0 +1,53 @@
+package com.simlab.ug.common;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A result file name that carries a time step, such as {@code sol_t0042.vtu},
+ * {@code sol_t0042_p0003.vtu} (one rank's piece) or {@code mycase_t7.gltf}.
+ *
+ * <p>Files of the same series differ only in the step number; the series key is the file name
+ * with the step replaced by {@code *}, so each rank's pieces form a series of their own.
+ */
+public final class TimeStepName {
+
+    // Same t<digits> convention as the client's and the GLTF grouping, plus an optional rank suffix
+    private static final Pattern STEP = Pattern.compile("(.*?[_.]?t)(\\d+)((?:_p\\d+)?\\.[^.]+)", Pattern.CASE_INSENSITIVE);
+
+    private final String series;
+    private final long step;
+
+    private TimeStepName(String series, long step) {
+        this.series = series;
+        this.step = step;
+    }
+
+    /** The time step in {@code filename}, or null if it has none. */
+    public static TimeStepName parse(String filename) {
+        Matcher m = STEP.matcher(filename);
+        if (!m.matches() || m.group(2).length() > 18) {
+            return null;
+        }
+        return new TimeStepName(m.group(1) + "*" + m.group(3), Long.parseLong(m.group(2)));
+    }
+
+    /** File name with the step replaced by {@code *}, e.g. {@code sol_t*.vtu}. */
+    public String getSeries() {
+        return series;
+    }
+
+    public long getStep() {
+        return step;
+    }
+
+    /** True if {@code other} belongs to the same series and has an earlier step. */
+    public boolean isNewerThan(TimeStepName other) {
+        return series.equals(other.series) && step > other.step;
+    }
+
+    @Override
+    public String toString() {
+        return series + " @ " + step;
+    }
+}
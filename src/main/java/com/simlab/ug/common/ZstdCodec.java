@@ -0,0 +1,59 @@
+package com.simlab.ug.common;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.github.luben.zstd.util.Native;
+import io.grpc.Codec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * gRPC message codec for Zstandard ("zstd"). Compresses VTU/GLTF text several times faster
+ * than gzip at a similar ratio. Server and client register it next to the built-in gzip;
+ * peers that do not advertise it keep getting gzip or uncompressed messages.
+ */
+public final class ZstdCodec implements Codec {
+    private static final Logger logger = LoggerFactory.getLogger(ZstdCodec.class);
+
+    public static final String ENCODING = "zstd";
+
+    private final int level;
+
+    public ZstdCodec() {
+        this(3);
+    }
+
+    public ZstdCodec(int level) {
+        this.level = level;
+    }
+
+    /** False if the native zstd library cannot be loaded on this platform. */
+    public static boolean isAvailable() {
+        try {
+            Native.load();
+            return true;
+        } catch (UnsatisfiedLinkError | RuntimeException e) {
+            logger.warn("zstd compression unavailable: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public String getMessageEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream os) throws IOException {
+        return new ZstdOutputStream(os, level);
+    }
+
+    @Override
+    public InputStream decompress(InputStream is) throws IOException {
+        return new ZstdInputStream(is);
+    }
+}
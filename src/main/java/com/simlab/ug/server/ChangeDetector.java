@@ -0,0 +1,38 @@
+package com.simlab.ug.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Finds created and modified files below a directory tree for a {@link DirectoryWatchRegistry}
+ * watch; either from file system events ({@link WatchServiceDetector}) or by comparing
+ * snapshots ({@link PollingDetector}).
+ */
+interface ChangeDetector extends Closeable {
+
+    /** Receives what a detector finds; called from the detector's thread. */
+    interface Sink {
+        /** {@code file}, a regular file, was created or modified. */
+        void changed(Path file);
+
+        /** Changes may have been lost, e.g. because the event queue overflowed. */
+        default void overflowed() {
+        }
+
+        /** The detector cannot report all changes any more and has stopped. */
+        default void failed(String reason) {
+        }
+    }
+
+    /**
+     * Starts reporting changes made from now on to {@code sink}.
+     *
+     * @throws IOException if the tree cannot be watched this way
+     */
+    void start(Sink sink) throws IOException;
+
+    /** Stops reporting; does not throw. */
+    @Override
+    void close();
+}
@@ -0,0 +1,73 @@
+package com.simlab.ug.server;
+
+import com.simlab.ug.common.FileHashes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers SHA-256 hashes of result files by (path, size, mtime), so manifests and
+ * have-list checks only read a file again after it changed.
+ */
+final class ContentHashCache {
+
+    private static final int MAX_ENTRIES = 100_000;
+
+    private final Map<Key, String> hashes = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    String sha256(Path file) throws IOException {
+        return sha256(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+    }
+
+    /** Hash for {@code file} as of the given size and mtime. */
+    String sha256(Path file, long size, long lastModifiedMs) throws IOException {
+        Key key = new Key(file.toAbsolutePath().toString(), size, lastModifiedMs);
+        synchronized (hashes) {
+            String cached = hashes.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        String hash = FileHashes.sha256Hex(file);
+        // Don't cache a hash of contents that changed while they were being read
+        if (Files.size(file) == size && Files.getLastModifiedTime(file).toMillis() == lastModifiedMs) {
+            synchronized (hashes) {
+                hashes.put(key, hash);
+            }
+        }
+        return hash;
+    }
+
+    private static final class Key {
+        final String path;
+        final long size;
+        final long lastModifiedMs;
+
+        Key(String path, long size, long lastModifiedMs) {
+            this.path = path;
+            this.size = size;
+            this.lastModifiedMs = lastModifiedMs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return size == k.size && lastModifiedMs == k.lastModifiedMs && path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, lastModifiedMs);
+        }
+    }
+}
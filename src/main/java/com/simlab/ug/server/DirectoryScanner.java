@@ -0,0 +1,105 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Lists the regular files below a directory together with their attributes, reading
+ * subdirectories in parallel.
+ *
+ * <p>Unlike {@code Files.walk(...).filter(Files::isRegularFile)} every file is stat'ed once, and
+ * on large output trees (one directory per time step or rank) the directories are listed by
+ * several threads. The result keeps walk order. Symbolic links to files are listed, links to
+ * directories are not followed. Entries that vanish while they are listed are skipped one by
+ * one; a directory that cannot be opened is skipped as a whole.
+ */
+final class DirectoryScanner {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryScanner.class);
+
+    // Listing is I/O bound, so this does not compete with the common pool's compute work
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+            Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors())));
+
+    /** A regular file and its attributes as of the scan. */
+    static final class Entry {
+        final Path path;
+        final BasicFileAttributes attrs;
+
+        Entry(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+
+    private DirectoryScanner() {
+    }
+
+    /** Regular files below {@code root} that match {@code filter}. */
+    static List<Entry> scan(Path root, Predicate<Path> filter) {
+        return POOL.invoke(new ListTask(root, filter));
+    }
+
+    private static final class ListTask extends RecursiveTask<List<Entry>> {
+        private final Path directory;
+        private final Predicate<Path> filter;
+
+        ListTask(Path directory, Predicate<Path> filter) {
+            this.directory = directory;
+            this.filter = filter;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            // Files as entries, subdirectories as tasks whose results are inserted in their place
+            List<Object> slots = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attrs.isSymbolicLink()) {
+                            attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                            if (attrs.isDirectory()) continue;
+                        }
+                    } catch (IOException e) {
+                        // Removed meanwhile or a dangling link; only this entry is skipped
+                        logger.debug("Skipping {}: {}", child, e.getMessage());
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        ListTask task = new ListTask(child, filter);
+                        task.fork();
+                        slots.add(task);
+                    } else if (attrs.isRegularFile() && filter.test(child)) {
+                        slots.add(new Entry(child, attrs));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // The directory was removed meanwhile or cannot be read
+                logger.warn("Cannot list {}: {}", directory, e.getMessage());
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (Object slot : slots) {
+                if (slot instanceof ListTask) {
+                    entries.addAll(((ListTask) slot).join());
+                } else {
+                    entries.add((Entry) slot);
+                }
+            }
+            return entries;
+        }
+    }
+}
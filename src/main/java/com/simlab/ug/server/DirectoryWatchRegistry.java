@@ -0,0 +1,314 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one recursive directory watch per output directory tree between all result
+ * subscribers watching it.
+ *
+ * <p>Each tree has one {@link ChangeDetector}: a {@link WatchServiceDetector}, or a
+ * {@link PollingDetector} where events are unreliable. With {@link ChangeDetection#AUTO} the
+ * backend is chosen per tree: network file systems are polled, and a watched tree is audited by
+ * a slow poll and switched to polling for good once the poll finds a change the watch missed,
+ * or when the watch cannot cover the tree. When a file changes, its readiness
+ * is tracked once by the shared {@link FileReadinessTracker}; when it is ready it is handed to
+ * every subscribed {@link Listener} that accepts it. Watches are reference counted: the first
+ * subscription for a tree starts its watcher and closing the last one stops it.
+ *
+ * <p>Events for a file that is already being waited for are coalesced into that wait, so a
+ * storm of {@code ENTRY_MODIFY} events yields one ready notification per settled version.
+ */
+final class DirectoryWatchRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatchRegistry.class);
+
+    /** Receives ready files from a shared watch. */
+    interface Listener {
+        /** True if this listener wants {@code file}; only wanted files are waited for. */
+        boolean accepts(Path file);
+
+        /** Called once {@code file} is ready; must not block. */
+        void fileReady(Path file);
+
+        /** Called for every change of a wanted file, before it is ready; must not block. */
+        default void fileChanged(Path file) {
+        }
+    }
+
+    /** How a tree's changes are found. */
+    enum ChangeDetection {
+        /** WatchService, audited by a slow poll; polling on network file systems or once the watch misses a change. */
+        AUTO,
+        WATCH_SERVICE,
+        POLLING
+    }
+
+    // File system types (FileStore.type() on Linux) whose remote writes raise no local events
+    private static final Set<String> REMOTE_FILE_SYSTEMS = Set.of(
+            "nfs", "nfs4", "lustre", "cifs", "smbfs", "smb3", "gpfs", "beegfs", "ceph", "fuse.sshfs", "9p");
+    // Interval of the scan that checks a watch in AUTO mode
+    private static final long AUDIT_INTERVAL_MS = 30_000;
+    // Time a watch event may take to be handled, and timestamp granularity
+    private static final long AUDIT_SLACK_MS = 2000;
+
+    private final FileReadinessTracker readiness;
+    private final Map<Path, TreeWatcher> watchers = new HashMap<>();
+    private volatile ChangeDetection changeDetection = ChangeDetection.AUTO;
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong eventsCoalesced = new AtomicLong();
+
+    DirectoryWatchRegistry(FileReadinessTracker readiness) {
+        this.readiness = readiness;
+    }
+
+    /** Backend for trees watched from now on. */
+    void setChangeDetection(ChangeDetection changeDetection) {
+        this.changeDetection = changeDetection;
+    }
+
+    /** Subscribes {@code listener} to changes below {@code root}; close the result to unsubscribe. */
+    synchronized Subscription subscribe(Path root, Listener listener) throws IOException {
+        Path key = root.toAbsolutePath().normalize();
+        TreeWatcher watcher = watchers.get(key);
+        if (watcher == null) {
+            watcher = new TreeWatcher(key, this, changeDetection);
+            watcher.start();
+            watchers.put(key, watcher);
+        }
+        watcher.listeners.add(listener);
+        return new Subscription(watcher, listener);
+    }
+
+    /**
+     * Completes once every file below {@code root} that is being waited for has been handed to
+     * the listeners (or turned out not ready); at once if the tree is not watched.
+     */
+    synchronized CompletableFuture<Void> whenSettled(Path root) {
+        TreeWatcher watcher = watchers.get(root.toAbsolutePath().normalize());
+        if (watcher == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.allOf(watcher.dispatching.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /** File events received for wanted files, across all trees since startup. */
+    long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    /** Events that arrived while their file was already being waited for. */
+    long getEventsCoalesced() {
+        return eventsCoalesced.get();
+    }
+
+    // "unknown" if the store cannot be determined
+    private static String fileSystemType(Path root) {
+        try {
+            return Files.getFileStore(root).type().toLowerCase(Locale.ROOT);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private synchronized void unsubscribe(TreeWatcher watcher, Listener listener) {
+        if (!watcher.listeners.remove(listener)) {
+            return;
+        }
+        if (watcher.listeners.isEmpty()) {
+            watchers.remove(watcher.root, watcher);
+            watcher.close();
+        }
+    }
+
+    /** A listener's registration with a shared watch. */
+    final class Subscription implements AutoCloseable {
+        private final TreeWatcher watcher;
+        private final Listener listener;
+
+        private Subscription(TreeWatcher watcher, Listener listener) {
+            this.watcher = watcher;
+            this.listener = listener;
+        }
+
+        @Override
+        public void close() {
+            unsubscribe(watcher, listener);
+        }
+    }
+
+    private static final class TreeWatcher {
+        final Path root;
+        final Set<Listener> listeners = new CopyOnWriteArraySet<>();
+        private final DirectoryWatchRegistry registry;
+        private final ChangeDetection mode;
+        // Readiness wait in progress per file; further events for it only restart its quiet period
+        private final Map<Path, CompletableFuture<Boolean>> waiting = new ConcurrentHashMap<>();
+        // Ready notifications not yet handed to all listeners
+        private final Set<CompletableFuture<Void>> dispatching = ConcurrentHashMap.newKeySet();
+        // When the watch last reported each file, for the audit
+        private final Map<Path, Long> watchReported = new ConcurrentHashMap<>();
+        private WatchServiceDetector watch;
+        // Finds all changes when polling, or audits the watch when it is on probation
+        private PollingDetector poller;
+        private volatile long overflowedAt = -1;
+        private volatile boolean running = true;
+
+        TreeWatcher(Path root, DirectoryWatchRegistry registry, ChangeDetection mode) {
+            this.root = root;
+            this.registry = registry;
+            this.mode = mode;
+        }
+
+        synchronized void start() throws IOException {
+            String reason = null;
+            if (mode == ChangeDetection.POLLING) {
+                reason = "configured";
+            } else if (mode == ChangeDetection.AUTO) {
+                String type = fileSystemType(root);
+                if (REMOTE_FILE_SYSTEMS.contains(type)) {
+                    reason = type + " file system";
+                }
+            }
+            if (reason == null) {
+                watch = new WatchServiceDetector(root);
+                try {
+                    watch.start(watchSink());
+                } catch (IOException e) {
+                    if (mode == ChangeDetection.WATCH_SERVICE || !Files.isDirectory(root)) {
+                        throw e;
+                    }
+                    // E.g. inotify watches exhausted on a large tree
+                    watch = null;
+                    reason = "WatchService failed: " + e.getMessage();
+                }
+            }
+            if (watch == null) {
+                poller = new PollingDetector(root);
+                poller.start(this::handle);
+                logger.info("Watching directory tree {} by polling ({})", root, reason);
+                return;
+            }
+            if (mode == ChangeDetection.AUTO) {
+                poller = new PollingDetector(root, AUDIT_INTERVAL_MS, AUDIT_INTERVAL_MS);
+                poller.start(this::audited);
+            }
+            logger.info("Watching directory tree {} with {}", root, watch);
+        }
+
+        synchronized void close() {
+            running = false;
+            if (watch != null) watch.close();
+            if (poller != null) poller.close();
+            logger.info("Stopped watching directory tree {}", root);
+        }
+
+        private ChangeDetector.Sink watchSink() {
+            return new ChangeDetector.Sink() {
+                @Override
+                public void changed(Path file) {
+                    watchReported.put(file, System.currentTimeMillis());
+                    handle(file);
+                }
+
+                @Override
+                public void overflowed() {
+                    // Lost events are expected here; the audit delivers them without blaming the watch
+                    overflowedAt = System.currentTimeMillis();
+                    logger.warn("Watch events for {} overflowed; rescanning", root);
+                    PollingDetector auditor = poller;
+                    if (auditor != null) auditor.pollNow();
+                }
+
+                @Override
+                public void failed(String reason) {
+                    switchToPolling(reason);
+                }
+            };
+        }
+
+        // A change the audit scan found; the watch should have reported it already
+        private void audited(Path file) {
+            Long reported = watchReported.get(file);
+            long modified;
+            try {
+                modified = Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException e) {
+                return;
+            }
+            if (reported != null && reported >= modified - AUDIT_SLACK_MS) {
+                return;
+            }
+            // Changed before an overflow, or too recently for its event to have been handled
+            boolean excused = modified <= overflowedAt + AUDIT_SLACK_MS
+                    || System.currentTimeMillis() - modified < AUDIT_SLACK_MS;
+            handle(file);
+            if (!excused) {
+                switchToPolling("WatchService missed a change of " + file);
+            }
+        }
+
+        private synchronized void switchToPolling(String reason) {
+            if (!running || watch == null) return;
+            logger.warn("Watching directory tree {} by polling from now on: {}", root, reason);
+            watch.close();
+            watch = null;
+            watchReported.clear();
+            if (poller != null) {
+                poller.setIntervalRange(PollingDetector.DEFAULT_MIN_INTERVAL_MS, PollingDetector.DEFAULT_MAX_INTERVAL_MS);
+                poller.pollNow();
+                return;
+            }
+            poller = new PollingDetector(root);
+            try {
+                poller.start(this::handle);
+            } catch (IOException e) {
+                logger.warn("Cannot poll directory tree {}", root, e);
+            }
+        }
+
+        // Called by the detectors' threads
+        private void handle(Path child) {
+            if (!running) return;
+            if (listeners.stream().noneMatch(listener -> listener.accepts(child))) return;
+
+            registry.eventsReceived.incrementAndGet();
+            for (Listener listener : listeners) {
+                if (listener.accepts(child)) {
+                    listener.fileChanged(child);
+                }
+            }
+            // Waited for once, however many subscribers want the file
+            CompletableFuture<Boolean> ready = registry.readiness.whenReady(child);
+            if (waiting.put(child, ready) == ready) {
+                registry.eventsCoalesced.incrementAndGet();
+                return;
+            }
+            CompletableFuture<Void> dispatched = ready.thenAccept(isReady -> {
+                waiting.remove(child, ready);
+                if (!isReady) {
+                    logger.info("File not ready: {}", child);
+                    return;
+                }
+                for (Listener listener : listeners) {
+                    if (listener.accepts(child)) {
+                        listener.fileReady(child);
+                    }
+                }
+            });
+            dispatching.add(dispatched);
+            dispatched.whenComplete((v, t) -> dispatching.remove(dispatched));
+        }
+    }
+}
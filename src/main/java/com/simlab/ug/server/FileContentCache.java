@@ -0,0 +1,217 @@
+package com.simlab.ug.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contents of recently sent result files, shared by all streams of the server, so a file that
+ * several clients pull (desktop, headsets, an archive job) is read from disk once.
+ *
+ * <p>Entries are keyed by path and are valid for one (size, mtime) version of the file; a newer
+ * version replaces the old one. Contents live in direct buffers outside the Java heap and are
+ * handed out as read-only {@link ByteString} views, so a hit costs no copy until Netty writes the
+ * message. The cache is bounded by {@link #DEFAULT_CAPACITY_BYTES} and evicts the least recently
+ * used files; files over an eighth of the capacity are not cached and callers read them as
+ * before. Concurrent misses of the same version wait for a single read.
+ *
+ * <p>An evicted buffer is freed by the garbage collector once no queued message references it.
+ */
+final class FileContentCache {
+
+    static final long DEFAULT_CAPACITY_BYTES = 256L * 1024 * 1024;
+
+    private final long capacityBytes;
+    private final long maxEntryBytes;
+    // Guarded by itself; in access order, eldest first
+    private final Map<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<Key, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // Guarded by entries
+    private long bytes;
+
+    FileContentCache() {
+        this(DEFAULT_CAPACITY_BYTES);
+    }
+
+    FileContentCache(long capacityBytes) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("capacityBytes must be positive: " + capacityBytes);
+        }
+        this.capacityBytes = capacityBytes;
+        this.maxEntryBytes = Math.min(capacityBytes / 8, Integer.MAX_VALUE);
+    }
+
+    /** True if files of {@code size} bytes are cached. */
+    boolean accepts(long size) {
+        return size <= maxEntryBytes;
+    }
+
+    /**
+     * Contents of {@code file} as of the given size and mtime, read from disk if not cached.
+     * Returns null if the file is too large to cache.
+     *
+     * @throws IOException if the file cannot be read or was truncated
+     */
+    ByteString get(Path file, long size, long lastModifiedMs) throws IOException {
+        if (!accepts(size)) {
+            return null;
+        }
+        Key key = new Key(file.toAbsolutePath().toString(), size, lastModifiedMs);
+        synchronized (entries) {
+            Entry entry = entries.get(key.path);
+            if (entry != null && entry.size == size && entry.lastModifiedMs == lastModifiedMs) {
+                hits.incrementAndGet();
+                return wrap(entry.content);
+            }
+        }
+        CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            // Another stream is reading this version right now
+            hits.incrementAndGet();
+            try {
+                return wrap(running.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        misses.incrementAndGet();
+        try {
+            ByteBuffer content = read(file, (int) size);
+            // Don't cache contents that changed while they were being read
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.size() == size && attrs.lastModifiedTime().toMillis() == lastModifiedMs) {
+                put(key, content);
+            }
+            load.complete(content);
+            return wrap(content);
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /** Contents of {@code file} as it is now; null if it is too large to cache. */
+    ByteString get(Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        return get(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return String.format(Locale.ROOT, "%d hits, %d misses (%.0f%% hit rate), %d evictions, %.1f of %.1f MB",
+                hitCount, total - hitCount, total > 0 ? 100.0 * hitCount / total : 0.0,
+                evictions.get(), getBytes() / 1e6, capacityBytes / 1e6);
+    }
+
+    private void put(Key key, ByteBuffer content) {
+        synchronized (entries) {
+            Entry previous = entries.put(key.path, new Entry(key.size, key.lastModifiedMs, content));
+            bytes += content.capacity();
+            if (previous != null) {
+                bytes -= previous.content.capacity();
+            }
+            for (Iterator<Entry> it = entries.values().iterator(); bytes > capacityBytes && it.hasNext(); ) {
+                Entry eldest = it.next();
+                bytes -= eldest.content.capacity();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static ByteBuffer read(Path file, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    throw new IOException("File was truncated while reading " + file + " at offset " + buffer.position());
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Each caller gets its own position and limit; the bytes are never written again
+    private static ByteString wrap(ByteBuffer content) {
+        return UnsafeByteOperations.unsafeWrap(content.asReadOnlyBuffer());
+    }
+
+    private static final class Entry {
+        final long size;
+        final long lastModifiedMs;
+        final ByteBuffer content;
+
+        Entry(long size, long lastModifiedMs, ByteBuffer content) {
+            this.size = size;
+            this.lastModifiedMs = lastModifiedMs;
+            this.content = content;
+        }
+    }
+
+    private static final class Key {
+        final String path;
+        final long size;
+        final long lastModifiedMs;
+
+        Key(String path, long size, long lastModifiedMs) {
+            this.path = path;
+            this.size = size;
+            this.lastModifiedMs = lastModifiedMs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return size == k.size && lastModifiedMs == k.lastModifiedMs && path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, lastModifiedMs);
+        }
+    }
+}
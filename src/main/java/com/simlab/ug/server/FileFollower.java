@@ -0,0 +1,136 @@
+package com.simlab.ug.server;
+
+import com.simlab.ug.common.FilePatternSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-subscriber state for files streamed while they grow (follow mode).
+ *
+ * <p>For each followed file it remembers how many bytes the client holds and the last few of
+ * them. The next change is sent as an append from that offset if the file is at least that long
+ * and those bytes are unchanged; a truncated or rewritten file is sent again in full. Appends to
+ * one file are sent at most every {@link #DEFAULT_MIN_INTERVAL_MS}; changes in between are
+ * deferred and picked up with {@link #takeDue}. Not thread-safe; used by one watcher thread.
+ */
+final class FileFollower {
+
+    static final long DEFAULT_MIN_INTERVAL_MS = 250;
+
+    // Bytes before the sent offset compared to detect rewrites
+    private static final int TAIL_SIZE = 4096;
+
+    private final FilePatternSet patterns;
+    private final long minIntervalMs;
+    private final Map<String, Followed> followed = new HashMap<>();
+    private final Map<Path, Long> deferred = new LinkedHashMap<>();
+
+    private static final class Followed {
+        long size;
+        byte[] tail;
+        long sentAt;
+    }
+
+    FileFollower(FilePatternSet patterns) {
+        this(patterns, DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    FileFollower(FilePatternSet patterns, long minIntervalMs) {
+        this.patterns = patterns;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /** True if {@code file} is streamed while it grows. */
+    boolean follows(Path file) {
+        return patterns.matches(file);
+    }
+
+    /**
+     * Offset from which {@code file} can be sent as an append, or -1 if it has to be sent in
+     * full because it was not sent before, or was truncated or rewritten since.
+     */
+    long appendOffset(Path file, String filename) throws IOException {
+        Followed state = followed.get(filename);
+        if (state == null) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < state.size) {
+                return -1;
+            }
+            return Arrays.equals(readTail(channel, state.size), state.tail) ? state.size : -1;
+        }
+    }
+
+    /**
+     * Defers {@code file} if an append was sent for it less than the minimum interval ago.
+     *
+     * @return true if deferred; the file comes back from {@link #takeDue}
+     */
+    boolean deferIfTooSoon(Path file, String filename) {
+        Followed state = followed.get(filename);
+        if (state == null) return false;
+        long due = state.sentAt + minIntervalMs;
+        if (System.currentTimeMillis() >= due) return false;
+        deferred.putIfAbsent(file, due);
+        return true;
+    }
+
+    /** Records that the client now holds the first {@code size} bytes of {@code file}. */
+    void sent(Path file, String filename, long size) throws IOException {
+        Followed state = followed.computeIfAbsent(filename, f -> new Followed());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            state.tail = readTail(channel, size);
+        }
+        state.size = size;
+        state.sentAt = System.currentTimeMillis();
+    }
+
+    /** Milliseconds until the next deferred file is due; {@code Long.MAX_VALUE} if none. */
+    long millisUntilDue() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (long due : deferred.values()) {
+            next = Math.min(next, Math.max(0, due - now));
+        }
+        return next;
+    }
+
+    /** Removes and returns the deferred files that are due. */
+    List<Path> takeDue() {
+        if (deferred.isEmpty()) return List.of();
+        long now = System.currentTimeMillis();
+        List<Path> due = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, Long>> it = deferred.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (entry.getValue() <= now) {
+                due.add(entry.getKey());
+                it.remove();
+            }
+        }
+        return due;
+    }
+
+    // The TAIL_SIZE bytes before end, or fewer if the file is shorter
+    private static byte[] readTail(FileChannel channel, long end) throws IOException {
+        long start = Math.max(0, end - TAIL_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
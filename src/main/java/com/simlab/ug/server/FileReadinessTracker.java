@@ -0,0 +1,217 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells when result files have been completely written.
+ *
+ * <p>A file counts as ready once its size and modification time have not changed for a quiet
+ * period. All pending files share one scheduler thread: each file's next check is a timer task,
+ * and {@link #whenReady} returns a future that completes with {@code true} when the file goes
+ * quiet, or {@code false} if it disappears or stays busy until the timeout. Waiting for hundreds
+ * of files therefore costs a few stat calls per check interval and no blocked threads.
+ *
+ * <p>With an {@link OpenFileProbe} a file is ready as soon as the simulation has closed it and
+ * is never ready while a simulation process holds it open for writing, whatever the quiet
+ * period. The heuristic only applies where the probe cannot tell.
+ *
+ * <p>Either way a file must also have gone a debounce window without changes or further
+ * {@link #whenReady} calls, so a burst of writes, or of close and reopen cycles, settles into
+ * one ready version instead of several.
+ */
+final class FileReadinessTracker {
+    private static final Logger logger = LoggerFactory.getLogger(FileReadinessTracker.class);
+
+    static final Duration DEFAULT_QUIET_PERIOD = Duration.ofMillis(100);
+    static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(2);
+    static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofMillis(25);
+    static final Duration DEFAULT_DEBOUNCE = Duration.ofMillis(50);
+
+    private final long quietNanos;
+    private final long timeoutNanos;
+    private final long checkNanos;
+    private volatile long debounceNanos = DEFAULT_DEBOUNCE.toNanos();
+    private final OpenFileProbe probe;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Map<Path, PendingFile> pending = new ConcurrentHashMap<>();
+
+    FileReadinessTracker() {
+        this(null);
+    }
+
+    /** @param probe close-write detection, or null to rely on the quiet period alone */
+    FileReadinessTracker(OpenFileProbe probe) {
+        this(probe, DEFAULT_QUIET_PERIOD, DEFAULT_TIMEOUT, DEFAULT_CHECK_INTERVAL);
+    }
+
+    FileReadinessTracker(OpenFileProbe probe, Duration quietPeriod, Duration timeout, Duration checkInterval) {
+        this.probe = probe;
+        this.quietNanos = quietPeriod.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+        this.checkNanos = checkInterval.toNanos();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "FileReadinessTracker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final class PendingFile {
+        final Path file;
+        final long deadline;
+        final CompletableFuture<Boolean> ready = new CompletableFuture<>();
+        // Guarded by this; a touch must not slip in between the final check and completion
+        long stableSince;
+        boolean done;
+        Snapshot last;
+
+        PendingFile(Path file, long now, long timeoutNanos) {
+            this.file = file;
+            this.deadline = now + timeoutNanos;
+            this.stableSince = now;
+        }
+    }
+
+    /**
+     * Future that completes once {@code file} has been quiet for the quiet period. If the file
+     * is already being tracked, its quiet period restarts and the existing future is returned.
+     * Completion callbacks run on the tracker's thread and must not block.
+     */
+    CompletableFuture<Boolean> whenReady(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        long now = System.nanoTime();
+        PendingFile fresh = new PendingFile(key, now, timeoutNanos);
+        while (true) {
+            PendingFile existing = pending.putIfAbsent(key, fresh);
+            if (existing == null) {
+                scheduler.execute(() -> check(fresh));
+                return fresh.ready;
+            }
+            synchronized (existing) {
+                if (!existing.done) {
+                    existing.stableSince = now;
+                    return existing.ready;
+                }
+            }
+            // Completed just now; the change needs a new wait
+            pending.remove(key, existing);
+        }
+    }
+
+    /** Sets the debounce window; applies to later checks of pending files too. */
+    void setDebounce(Duration debounce) {
+        this.debounceNanos = debounce.toNanos();
+    }
+
+    /** Stops the scheduler; files still pending complete with {@code false}. */
+    void shutdown() {
+        scheduler.shutdownNow();
+        pending.values().forEach(p -> {
+            synchronized (p) {
+                finish(p, false);
+            }
+        });
+    }
+
+    private void check(PendingFile p) {
+        long observedAt;
+        synchronized (p) {
+            observedAt = p.stableSince;
+        }
+        // The scan must be newer than the last observed change, or a file opened just before it would look closed
+        OpenFileProbe.State state = probe != null ? probe.stateOf(p.file, observedAt) : OpenFileProbe.State.UNKNOWN;
+        Snapshot now;
+        try {
+            now = Snapshot.take(p.file);
+        } catch (IOException e) {
+            now = null;
+        }
+        long debounce = debounceNanos;
+        long delay;
+        synchronized (p) {
+            if (p.done) return;
+            if (now == null) {
+                finish(p, false);
+                return;
+            }
+            long t = System.nanoTime();
+            if (!now.equals(p.last)) {
+                p.last = now;
+                p.stableSince = t;
+            }
+            long quietFor = t - p.stableSince;
+            if (state == OpenFileProbe.State.CLOSED && p.stableSince <= observedAt && quietFor >= debounce) {
+                finish(p, true);
+                return;
+            }
+            if (state != OpenFileProbe.State.OPEN_FOR_WRITING && quietFor >= Math.max(quietNanos, debounce)) {
+                finish(p, true);
+                return;
+            }
+            if (t > p.deadline) {
+                logger.info("File still changing after {} s: {}", TimeUnit.NANOSECONDS.toSeconds(timeoutNanos), p.file);
+                finish(p, false);
+                return;
+            }
+            long settleIn = state == OpenFileProbe.State.CLOSED
+                    ? debounce - quietFor : Math.max(quietNanos, debounce) - quietFor;
+            delay = state == OpenFileProbe.State.OPEN_FOR_WRITING
+                    ? checkNanos : Math.min(checkNanos, Math.max(0, settleIn));
+        }
+        scheduler.schedule(() -> check(p), delay, TimeUnit.NANOSECONDS);
+    }
+
+    // Caller holds p's monitor
+    private void finish(PendingFile p, boolean ready) {
+        p.done = true;
+        pending.remove(p.file, p);
+        p.ready.complete(ready);
+    }
+
+    private static final class Snapshot {
+        final long size;
+        final long mtimeMs;
+
+        private Snapshot(long size, long mtimeMs) {
+            this.size = size;
+            this.mtimeMs = mtimeMs;
+        }
+
+        /** Null if the file does not exist (any more). */
+        static Snapshot take(Path p) throws IOException {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) return null;
+                return new Snapshot(attrs.size(), attrs.lastModifiedTime().toMillis());
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Snapshot)) return false;
+            Snapshot s = (Snapshot) o;
+            return size == s.size && mtimeMs == s.mtimeMs;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(mtimeMs);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.simlab.ug.server;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Server stream wrapper that only writes while the transport reports {@code isReady()}.
+ *
+ * <p>Messages are queued in a bounded per-stream queue and drained from the stream's
+ * on-ready handler, so a slow client makes the queue fill up instead of Netty buffering
+ * unbounded data on the heap. What happens when the queue is full is decided by the
+ * {@link OverflowPolicy}. A producer blocked on a full queue does not rely on the on-ready
+ * handler: that runs in the call's callback thread, which may be the blocked one, so the
+ * producer polls {@code isReady()} every {@code BLOCK_RECHECK_MS} (50 ms) and writes itself.
+ *
+ * <p>A message can be queued with a {@link Guard} when it shares memory with something that may
+ * change while it waits, such as a mapped file: the guard is asked right before the message is
+ * handed to gRPC, which serializes it at once, and is told when the stream is done with it. A
+ * message whose guard says it is no longer valid fails the call with ABORTED, since the client
+ * would otherwise be left with a part of a file that is never completed. So does a fault while
+ * such a message is serialized, the JVM's reaction to a mapping that shrank after the check;
+ * senders keep that unlikely by mapping only files that are done being written.
+ *
+ * <p>All methods are thread-safe; messages keep their order.
+ */
+final class FlowControlledStream<T> implements StreamObserver<T> {
+    private static final Logger logger = LoggerFactory.getLogger(FlowControlledStream.class);
+
+    /** Behaviour when a message is offered while the queue is full. */
+    enum OverflowPolicy {
+        /** Block the producer until the client has caught up. */
+        BLOCK,
+        /** Drop the oldest queued message that {@code droppable} accepts; block if none does. */
+        DROP_STALE,
+        /** Fail the stream with RESOURCE_EXHAUSTED. */
+        FAIL
+    }
+
+    /** Checks a queued message before it is written and learns when its memory is free again. */
+    interface Guard {
+        /** False if the message must not be written any more; the call then fails with ABORTED. */
+        boolean valid();
+
+        /** Names what the message was made from in the error the call fails with. */
+        String source();
+
+        /** The message was written or dropped; called once per message it was queued with. */
+        void released();
+    }
+
+    static final int DEFAULT_CAPACITY = 16;
+
+    // On-ready callbacks are serialized with the call's other callbacks and may be stuck
+    // behind a producer running in the handler thread, so blocked producers re-check readiness
+    private static final long BLOCK_RECHECK_MS = 50;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final ServerCallStreamObserver<T> delegate;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Predicate<T> droppable;
+    private final Deque<T> queue = new ArrayDeque<>();
+    // Guards of queued messages that have one, guarded by queue
+    private final Map<T, Guard> guards = new IdentityHashMap<>();
+
+    // Per-message compression decision, null while compression is off; see enableCompression
+    private Predicate<T> compressible;
+    private LongConsumer compressionCpuNanos;
+    // (newer, queued) -> true if queued is obsolete once newer is offered; null to keep everything
+    private BiPredicate<T, T> supersedes;
+    // Asked for each message before it is queued, outside the lock; false drops the message
+    private volatile Predicate<T> admission;
+
+    // Run after the queue is dropped on cancellation; chained by setOnCancelHandler
+    private volatile Runnable onCancel;
+
+    private boolean completePending = false;
+    private boolean closed = false;
+
+    /**
+     * Must be created inside the service method, before it returns, so the on-ready handler
+     * can still be installed. Takes over the call's on-ready and on-cancel handlers; further
+     * cancel handling is added with {@link #setOnCancelHandler}.
+     *
+     * @param droppable which queued messages {@link OverflowPolicy#DROP_STALE} may discard
+     * @throws IllegalArgumentException if {@code observer} is not the observer of a server call
+     */
+    FlowControlledStream(StreamObserver<T> observer, int capacity, OverflowPolicy policy, Predicate<T> droppable) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (!(observer instanceof ServerCallStreamObserver)) {
+            throw new IllegalArgumentException("Not the observer of a server call: " + observer.getClass().getName());
+        }
+        this.delegate = (ServerCallStreamObserver<T>) observer;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.droppable = droppable;
+        delegate.setOnReadyHandler(this::drain);
+        delegate.setOnCancelHandler(this::cancelled);
+    }
+
+    @Override
+    public void onNext(T value) {
+        onNext(value, null);
+    }
+
+    /**
+     * Queues {@code value} like {@link #onNext(Object)}; {@code guard}, unless null, decides
+     * right before the write whether it still goes out and is released afterwards, or at once
+     * if the message is not queued.
+     */
+    void onNext(T value, Guard guard) {
+        Predicate<T> admit = admission;
+        if (admit != null && !admit.test(value)) {
+            release(guard);
+            return;
+        }
+        synchronized (queue) {
+            if (closed || completePending) {
+                release(guard);
+                return;
+            }
+            drainLocked();
+            if (supersedes != null) {
+                dropSupersededLocked(value);
+            }
+            while (queue.size() >= capacity && !closed) {
+                if (policy == OverflowPolicy.FAIL) {
+                    logger.warn("Stream queue full ({} messages), failing stream for slow client", capacity);
+                    failLocked(Status.RESOURCE_EXHAUSTED.withDescription("Client is not reading fast enough"));
+                    release(guard);
+                    return;
+                }
+                if (policy == OverflowPolicy.DROP_STALE && dropOldestLocked()) {
+                    continue;
+                }
+                try {
+                    queue.wait(BLOCK_RECHECK_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    release(guard);
+                    return;
+                }
+                drainLocked();
+            }
+            if (closed) {
+                release(guard);
+                return;
+            }
+            queue.addLast(value);
+            if (guard != null) {
+                guards.put(value, guard);
+            }
+            drainLocked();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        synchronized (queue) {
+            if (closed) return;
+            closed = true;
+            clearLocked();
+            delegate.onError(t);
+        }
+    }
+
+    /** Completes the stream once every queued message has been written. */
+    @Override
+    public void onCompleted() {
+        synchronized (queue) {
+            if (closed) return;
+            completePending = true;
+            drainLocked();
+        }
+    }
+
+    /**
+     * Compresses the stream with {@code encoding} (which must be registered with the server)
+     * and decides per message whether to compress it. The CPU time spent writing compressed
+     * messages, which is dominated by compression, is reported to {@code cpuNanos}.
+     * Must be called before the first message.
+     */
+    void enableCompression(String encoding, Predicate<T> compressible, LongConsumer cpuNanos) {
+        synchronized (queue) {
+            delegate.setCompression(encoding);
+            this.compressible = compressible;
+            this.compressionCpuNanos = cpuNanos;
+        }
+    }
+
+    /**
+     * Makes every message wait for {@code admission} before it is queued, e.g. for its turn
+     * with the {@link TransferScheduler}. The producer blocks while it waits; a message that
+     * is not admitted, because the stream closed meanwhile, is dropped. Must be called before
+     * the first message.
+     */
+    void schedule(Predicate<T> admission) {
+        this.admission = admission;
+    }
+
+    /** True once the stream was completed, failed or cancelled by the client. */
+    boolean isClosed() {
+        synchronized (queue) {
+            return closed || delegate.isCancelled();
+        }
+    }
+
+    /**
+     * Runs {@code handler} when the client cancels the call, after any handler set before it.
+     * Use this instead of the call observer's own setter, which would replace the stream's.
+     */
+    void setOnCancelHandler(Runnable handler) {
+        synchronized (queue) {
+            Runnable previous = onCancel;
+            onCancel = previous == null ? handler : () -> {
+                previous.run();
+                handler.run();
+            };
+        }
+    }
+
+    private void drain() {
+        synchronized (queue) {
+            drainLocked();
+        }
+    }
+
+    private void drainLocked() {
+        if (closed) return;
+        while (!closed && !queue.isEmpty() && delegate.isReady()) {
+            writeLocked(queue.pollFirst());
+        }
+        if (!closed && queue.isEmpty() && completePending) {
+            closed = true;
+            delegate.onCompleted();
+        }
+        queue.notifyAll();
+    }
+
+    private void writeLocked(T message) {
+        Guard guard = guards.remove(message);
+        if (guard == null) {
+            serializeLocked(message);
+            return;
+        }
+        try {
+            if (guard.valid()) {
+                serializeLocked(message);
+            } else {
+                logger.warn("{} changed while a message made from it was queued, aborting the call", guard.source());
+                failLocked(Status.ABORTED.withDescription(guard.source() + " changed while it was sent"));
+            }
+        } catch (InternalError e) {
+            // The source shrank between the check and the copy; the message is half written
+            logger.warn("{} was truncated while a message made from it was written, aborting the call", guard.source(), e);
+            failLocked(Status.ABORTED.withDescription(guard.source() + " changed while it was sent"));
+        } finally {
+            guard.released();
+        }
+    }
+
+    private void serializeLocked(T message) {
+        if (compressible == null) {
+            delegate.onNext(message);
+            return;
+        }
+        boolean compress = compressible.test(message);
+        delegate.setMessageCompression(compress);
+        if (!compress || !THREADS.isCurrentThreadCpuTimeSupported()) {
+            delegate.onNext(message);
+            return;
+        }
+        long start = THREADS.getCurrentThreadCpuTime();
+        delegate.onNext(message);
+        compressionCpuNanos.accept(THREADS.getCurrentThreadCpuTime() - start);
+    }
+
+    /**
+     * Drops queued messages that {@code supersedes} says a newly offered one makes obsolete,
+     * whatever the overflow policy, so a client that falls behind skips to current state.
+     * Must be called before the first message.
+     */
+    void dropSuperseded(BiPredicate<T, T> supersedes) {
+        synchronized (queue) {
+            this.supersedes = supersedes;
+        }
+    }
+
+    private void dropSupersededLocked(T newer) {
+        Iterator<T> it = queue.iterator();
+        while (it.hasNext()) {
+            T queued = it.next();
+            if (supersedes.test(newer, queued)) {
+                it.remove();
+                release(guards.remove(queued));
+            }
+        }
+    }
+
+    private boolean dropOldestLocked() {
+        Iterator<T> it = queue.iterator();
+        while (it.hasNext()) {
+            T queued = it.next();
+            if (droppable.test(queued)) {
+                it.remove();
+                release(guards.remove(queued));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void failLocked(Status status) {
+        closed = true;
+        clearLocked();
+        delegate.onError(status.asRuntimeException());
+    }
+
+    private void clearLocked() {
+        queue.clear();
+        guards.values().forEach(Guard::released);
+        guards.clear();
+        queue.notifyAll();
+    }
+
+    private static void release(Guard guard) {
+        if (guard != null) {
+            guard.released();
+        }
+    }
+
+    private void cancelled() {
+        synchronized (queue) {
+            closed = true;
+            clearLocked();
+        }
+        Runnable handler = onCancel;
+        if (handler != null) {
+            handler.run();
+        }
+    }
+}
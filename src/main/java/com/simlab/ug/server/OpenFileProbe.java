@@ -0,0 +1,149 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Tells whether a result file is still open for writing by a running simulation, by reading
+ * {@code /proc/<pid>/fd} and {@code /proc/<pid>/fdinfo} of the UG4 processes and their
+ * descendants (MPI ranks). Linux only; elsewhere every answer is {@link State#UNKNOWN}.
+ *
+ * <p>An answer is only given for files below the working directory of a scanned process,
+ * which is the simulation's output directory; files outside are {@link State#UNKNOWN}.
+ */
+final class OpenFileProbe {
+    private static final Logger logger = LoggerFactory.getLogger(OpenFileProbe.class);
+
+    enum State {
+        /** A simulation process holds the file open for writing. */
+        OPEN_FOR_WRITING,
+        /** The file is in a simulation's output directory and no process writes it. */
+        CLOSED,
+        /** Cannot tell; use the quiet-period heuristic. */
+        UNKNOWN
+    }
+
+    private static final Path PROC = Paths.get("/proc");
+    // O_ACCMODE bits of the fdinfo flags: O_WRONLY = 1, O_RDWR = 2
+    private static final int ACCESS_MODE_MASK = 3;
+
+    private final Supplier<Collection<ProcessHandle>> processes;
+    private final boolean supported;
+    private Scan lastScan;
+
+    /** @param processes the simulation processes currently running */
+    OpenFileProbe(Supplier<Collection<ProcessHandle>> processes) {
+        this.processes = processes;
+        this.supported = Files.isDirectory(PROC.resolve("self").resolve("fdinfo"));
+        if (!supported) {
+            logger.info("/proc is not available, result readiness uses the quiet-period heuristic only");
+        }
+    }
+
+    private static final class Scan {
+        final long startedAt;
+        final Set<Path> openForWriting;
+        final List<Path> workingDirectories;
+
+        Scan(long startedAt, Set<Path> openForWriting, List<Path> workingDirectories) {
+            this.startedAt = startedAt;
+            this.openForWriting = openForWriting;
+            this.workingDirectories = workingDirectories;
+        }
+    }
+
+    /**
+     * State of {@code file} according to a scan started no earlier than {@code notBefore}
+     * ({@link System#nanoTime()}), so a file opened after an older scan is never reported closed.
+     */
+    State stateOf(Path file, long notBefore) {
+        if (!supported) return State.UNKNOWN;
+        Scan scan = scanNotBefore(notBefore);
+        Path path;
+        try {
+            // The kernel reports fd and cwd targets with every symbolic link resolved
+            path = file.toRealPath();
+        } catch (IOException e) {
+            return State.UNKNOWN; // removed meanwhile
+        }
+        if (scan.openForWriting.contains(path)) {
+            return State.OPEN_FOR_WRITING;
+        }
+        for (Path dir : scan.workingDirectories) {
+            if (path.startsWith(dir)) return State.CLOSED;
+        }
+        return State.UNKNOWN;
+    }
+
+    // One scan serves every file checked in the same round
+    private synchronized Scan scanNotBefore(long notBefore) {
+        if (lastScan == null || lastScan.startedAt < notBefore) {
+            lastScan = scan();
+        }
+        return lastScan;
+    }
+
+    private Scan scan() {
+        long startedAt = System.nanoTime();
+        Set<Path> open = new HashSet<>();
+        List<Path> workingDirectories = new ArrayList<>();
+        for (ProcessHandle root : processes.get()) {
+            Stream.concat(Stream.of(root), root.descendants())
+                    .filter(ProcessHandle::isAlive)
+                    .forEach(process -> scanProcess(process.pid(), open, workingDirectories));
+        }
+        return new Scan(startedAt, open, workingDirectories);
+    }
+
+    private static void scanProcess(long pid, Set<Path> open, List<Path> workingDirectories) {
+        Path procDir = PROC.resolve(Long.toString(pid));
+        List<Path> writing = new ArrayList<>();
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(procDir.resolve("fd"))) {
+            for (Path fd : fds) {
+                Path target;
+                try {
+                    target = Files.readSymbolicLink(fd);
+                } catch (IOException e) {
+                    continue; // closed meanwhile
+                }
+                // Pipes and sockets read as "pipe:[123]" and are not absolute
+                if (target.isAbsolute() && isOpenForWriting(procDir.resolve("fdinfo").resolve(fd.getFileName()))) {
+                    writing.add(target);
+                }
+            }
+            // Only trusted if the descriptors could be read, i.e. the process is ours and still alive
+            workingDirectories.add(Files.readSymbolicLink(procDir.resolve("cwd")).normalize());
+        } catch (IOException e) {
+            return;
+        }
+        open.addAll(writing);
+    }
+
+    private static boolean isOpenForWriting(Path fdinfo) {
+        try {
+            for (String line : Files.readAllLines(fdinfo)) {
+                if (line.startsWith("flags:")) {
+                    int flags = Integer.parseInt(line.substring("flags:".length()).trim(), 8);
+                    return (flags & ACCESS_MODE_MASK) != 0;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // fall through
+        }
+        // Descriptor closed meanwhile or unreadable flags; err on the side of "still writing"
+        return true;
+    }
+}
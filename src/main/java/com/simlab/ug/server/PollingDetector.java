@@ -0,0 +1,151 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds changes by scanning the tree and comparing each file's size and modification time with
+ * the previous scan. Works on every file system, including network file systems that raise no
+ * events for writes of other hosts, and needs no kernel watch per directory.
+ *
+ * <p>The poll interval adapts within its range: it halves after a scan that found changes,
+ * so a simulation writing steps is followed closely, and grows by half after every idle scan,
+ * so an idle tree costs little. It is never less than {@link #SCAN_COST_FACTOR} times the last
+ * scan's duration, which keeps scanning a very large tree at a small share of one thread.
+ */
+final class PollingDetector implements ChangeDetector {
+    private static final Logger logger = LoggerFactory.getLogger(PollingDetector.class);
+
+    static final long DEFAULT_MIN_INTERVAL_MS = 200;
+    static final long DEFAULT_MAX_INTERVAL_MS = 5000;
+    static final int SCAN_COST_FACTOR = 20;
+
+    private static final class Version {
+        final long size;
+        final long lastModifiedMs;
+
+        Version(long size, long lastModifiedMs) {
+            this.size = size;
+            this.lastModifiedMs = lastModifiedMs;
+        }
+
+        boolean sameAs(Version other) {
+            return other != null && size == other.size && lastModifiedMs == other.lastModifiedMs;
+        }
+    }
+
+    private final Path root;
+    // Only used by the polling thread
+    private Map<Path, Version> snapshot = new HashMap<>();
+    private Thread thread;
+    private volatile boolean running = true;
+
+    // Guarded by this
+    private long minIntervalMs;
+    private long maxIntervalMs;
+    private long intervalMs;
+    private boolean pollRequested;
+
+    PollingDetector(Path root) {
+        this(root, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS);
+    }
+
+    PollingDetector(Path root, long minIntervalMs, long maxIntervalMs) {
+        this.root = root;
+        setIntervalRange(minIntervalMs, maxIntervalMs);
+    }
+
+    /** Bounds of the adaptive interval; the current interval starts over at the minimum. */
+    synchronized void setIntervalRange(long minIntervalMs, long maxIntervalMs) {
+        this.minIntervalMs = Math.max(1, minIntervalMs);
+        this.maxIntervalMs = Math.max(this.minIntervalMs, maxIntervalMs);
+        this.intervalMs = this.minIntervalMs;
+        notifyAll();
+    }
+
+    /** Scans as soon as possible, e.g. because events of another detector were lost. */
+    synchronized void pollNow() {
+        pollRequested = true;
+        notifyAll();
+    }
+
+    synchronized long getIntervalMs() {
+        return intervalMs;
+    }
+
+    @Override
+    public void start(Sink sink) throws NoSuchFileException {
+        if (!Files.isDirectory(root)) {
+            throw new NoSuchFileException(root.toString());
+        }
+        // The first scan is the baseline: files that exist now are not changes
+        scan(null);
+        thread = new Thread(() -> run(sink), "DirectoryPoller-" + root.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "polling";
+    }
+
+    private void run(Sink sink) {
+        try {
+            while (running) {
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + intervalMs;
+                    for (long wait = intervalMs; !pollRequested && wait > 0; wait = deadline - System.currentTimeMillis()) {
+                        wait(wait);
+                    }
+                    pollRequested = false;
+                }
+                if (!running) break;
+                long start = System.nanoTime();
+                int changes = scan(sink);
+                long scanMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                synchronized (this) {
+                    long next = changes > 0 ? intervalMs / 2 : intervalMs + intervalMs / 2;
+                    next = Math.max(minIntervalMs, Math.min(maxIntervalMs, next));
+                    intervalMs = Math.max(next, scanMs * SCAN_COST_FACTOR);
+                }
+                if (changes > 0) {
+                    logger.debug("Poll of {} found {} changes in {} ms; next in {} ms", root, changes, scanMs, getIntervalMs());
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    // Compares the tree with the last snapshot, reporting changed files unless sink is null
+    private int scan(Sink sink) {
+        Map<Path, Version> current = new HashMap<>(Math.max(16, snapshot.size() * 4 / 3 + 1));
+        int changes = 0;
+        for (DirectoryScanner.Entry entry : DirectoryScanner.scan(root, path -> true)) {
+            Version version = new Version(entry.attrs.size(), entry.attrs.lastModifiedTime().toMillis());
+            current.put(entry.path, version);
+            if (sink != null && !version.sameAs(snapshot.get(entry.path))) {
+                changes++;
+                sink.changed(entry.path);
+            }
+        }
+        snapshot = current;
+        return changes;
+    }
+}
@@ -0,0 +1,125 @@
+package com.simlab.ug.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.simlab.ug.grpc.BatchEntry;
+import com.simlab.ug.grpc.FileBatch;
+import com.simlab.ug.grpc.FileData;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Packs small result files into batched {@link FileData} messages, so runs that write
+ * thousands of tiny files pay the per-message cost once per batch instead of once per file.
+ *
+ * <p>A batch is sent when it reaches {@link #DEFAULT_MAX_BATCH_BYTES} or when its oldest file
+ * has waited {@link #DEFAULT_MAX_DELAY_MS}; callers check the latter with {@link #flushIfDue}.
+ * A batch that holds a single file is sent as an ordinary message. Not thread-safe; messages
+ * are sent while holding the observer's monitor, like the other writers of result streams.
+ * Files are read through the server's {@link FileContentCache} when one is given.
+ */
+final class ResultBatcher {
+
+    /** Files up to this size are batched. */
+    static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024;
+    static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+    static final long DEFAULT_MAX_DELAY_MS = 200;
+
+    private final StreamObserver<FileData> observer;
+    private final long maxFileSize;
+    private final int maxBatchBytes;
+    private final long maxDelayMs;
+    private final FileContentCache cache;
+
+    private ByteString.Output payload = ByteString.newOutput();
+    private FileBatch.Builder index = FileBatch.newBuilder();
+    private String singleMimeType;
+    private long firstAddedAt;
+
+    ResultBatcher(StreamObserver<FileData> observer, FileContentCache cache) {
+        this(observer, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY_MS, cache);
+    }
+
+    ResultBatcher(StreamObserver<FileData> observer, long maxFileSize, int maxBatchBytes, long maxDelayMs,
+                  FileContentCache cache) {
+        this.observer = observer;
+        this.maxFileSize = maxFileSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayMs = maxDelayMs;
+        this.cache = cache;
+    }
+
+    /** True if a file of this size goes into a batch rather than its own message. */
+    boolean accepts(long size) {
+        return size <= maxFileSize;
+    }
+
+    /** Adds a complete file; sends the current batch first if the file would not fit. */
+    void add(Path path, String filename, String mimeType) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        ByteString content = cache != null ? cache.get(path, attrs.size(), lastModified) : null;
+        if (content == null) {
+            content = UnsafeByteOperations.unsafeWrap(Files.readAllBytes(path));
+        }
+        if (index.getEntriesCount() > 0 && payload.size() + content.size() > maxBatchBytes) {
+            flush();
+        }
+        if (index.getEntriesCount() == 0) {
+            firstAddedAt = System.currentTimeMillis();
+        }
+        index.addEntries(BatchEntry.newBuilder()
+                .setFilename(filename)
+                .setOffset(payload.size())
+                .setLength(content.size())
+                .setLastModifiedMs(lastModified)
+                .build());
+        content.writeTo(payload);
+        singleMimeType = mimeType;
+        if (payload.size() >= maxBatchBytes) {
+            flush();
+        }
+    }
+
+    boolean hasPending() {
+        return index.getEntriesCount() > 0;
+    }
+
+    /** Milliseconds until the pending batch is due; 0 if it is due now or nothing is pending. */
+    long millisUntilDue() {
+        if (!hasPending()) return 0;
+        return Math.max(0, firstAddedAt + maxDelayMs - System.currentTimeMillis());
+    }
+
+    void flushIfDue() {
+        if (hasPending() && millisUntilDue() == 0) {
+            flush();
+        }
+    }
+
+    void flush() {
+        if (!hasPending()) return;
+        FileData message;
+        if (index.getEntriesCount() == 1) {
+            message = FileData.newBuilder()
+                    .setFilename(index.getEntries(0).getFilename())
+                    .setMimeType(singleMimeType)
+                    .setContent(payload.toByteString())
+                    .build();
+        } else {
+            message = FileData.newBuilder()
+                    .setContent(payload.toByteString())
+                    .setBatch(index)
+                    .build();
+        }
+        payload = ByteString.newOutput();
+        index = FileBatch.newBuilder();
+        synchronized (observer) {
+            observer.onNext(message);
+        }
+    }
+}
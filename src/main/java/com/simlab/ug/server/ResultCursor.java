@@ -0,0 +1,107 @@
+package com.simlab.ug.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Position in a simulation's output reached by one GetSimulationResults call; the opaque
+ * {@code cursor} handed to the client and back.
+ *
+ * <p>Files are told apart by modification time. A file counts as new if it was modified at or
+ * after the cursor's time, the start of the previous scan less {@link #MARGIN_MS} for file
+ * systems with coarse timestamps, unless the cursor lists that very version as already seen.
+ * Files the previous call skipped because they were still being written are listed as pending
+ * and count as new whatever their time. Only the files of the margin and the pending ones are
+ * listed, so the cursor stays small however large the output is.
+ */
+final class ResultCursor {
+
+    // Covers 1 s (HFS+, ext3) and 2 s (FAT) timestamp granularity
+    static final long MARGIN_MS = 2000;
+
+    private static final String VERSION = "1";
+
+    private final long sinceMs;
+    // Size@mtime by path below the output directory
+    private final Map<String, String> seen = new HashMap<>();
+    private final Set<String> pending = new HashSet<>();
+
+    private ResultCursor(long sinceMs) {
+        this.sinceMs = sinceMs;
+    }
+
+    /** Cursor for a scan starting now; fill it with {@link #seen} and {@link #pending}. */
+    static ResultCursor startingAt(long scanStartMs) {
+        return new ResultCursor(scanStartMs - MARGIN_MS);
+    }
+
+    /**
+     * Reads a cursor from a previous call.
+     *
+     * @throws IllegalArgumentException if {@code token} is no cursor of this server version
+     */
+    static ResultCursor parse(String token) {
+        String text;
+        try {
+            text = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+        String[] lines = text.split("\n");
+        if (lines.length < 2 || !VERSION.equals(lines[0])) {
+            throw new IllegalArgumentException("Unsupported cursor");
+        }
+        try {
+            ResultCursor cursor = new ResultCursor(Long.parseLong(lines[1]));
+            for (int i = 2; i < lines.length; i++) {
+                String[] fields = lines[i].split("\t");
+                if (fields.length == 3 && "V".equals(fields[0])) {
+                    cursor.seen.put(fields[1], fields[2]);
+                } else if (fields.length == 2 && "P".equals(fields[0])) {
+                    cursor.pending.add(fields[1]);
+                } else {
+                    throw new IllegalArgumentException("Malformed cursor entry");
+                }
+            }
+            return cursor;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+
+    /** True if the file changed since the scan this cursor came from. */
+    boolean isNew(String name, long size, long lastModifiedMs) {
+        if (pending.contains(name)) {
+            return true;
+        }
+        return lastModifiedMs >= sinceMs && !version(size, lastModifiedMs).equals(seen.get(name));
+    }
+
+    /** Records a file of this scan; only those in the margin need to be remembered. */
+    void seen(String name, long size, long lastModifiedMs) {
+        if (lastModifiedMs >= sinceMs) {
+            seen.put(name, version(size, lastModifiedMs));
+        }
+    }
+
+    /** Records a file this scan could not deliver; the next one returns it in any case. */
+    void pending(String name) {
+        seen.remove(name);
+        pending.add(name);
+    }
+
+    String encode() {
+        StringBuilder text = new StringBuilder(VERSION).append('\n').append(sinceMs);
+        seen.forEach((name, version) -> text.append("\nV\t").append(name).append('\t').append(version));
+        pending.forEach(name -> text.append("\nP\t").append(name));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String version(long size, long lastModifiedMs) {
+        return size + "@" + lastModifiedMs;
+    }
+}
@@ -0,0 +1,363 @@
+package com.simlab.ug.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.simlab.ug.grpc.FileChunk;
+import com.simlab.ug.grpc.FileData;
+import com.simlab.ug.grpc.ResumePoint;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams result files as a sequence of fixed-size {@link FileChunk} slices.
+ *
+ * <p>Settled files, those the readiness tracker reported as completely written, of at least
+ * {@link #DEFAULT_MAP_THRESHOLD} bytes are memory-mapped and each slice is wrapped without
+ * copying, so the bytes go from the page cache into Netty's outbound buffers without passing
+ * through the Java heap. Files that may still be written to, and smaller ones, are read through
+ * one reusable buffer, since a mapping that shrinks while gRPC copies it makes the JVM fault.
+ * Either way memory per transfer stays at one chunk no matter how large the file is.
+ *
+ * <p>Since UG4 may still rewrite a settled file while its chunks wait in the stream's queue, the
+ * file's size and modification time are checked before each mapped chunk is made, and again by
+ * a {@link FlowControlledStream} right before it writes the chunk; the file stays open until the
+ * last chunk is written. A file that changed after some of its chunks went out fails the call
+ * with ABORTED naming the file, whether the sender or the stream notices, so the client never
+ * completes the stale version nor waits for a last chunk that never comes.
+ *
+ * <p>With a {@link FileContentCache} whole files that fit in it are taken from the cache instead,
+ * and the chunks are views of the cached contents; appended bytes are always read from disk.
+ */
+final class ResultFileSender {
+
+    /** Default slice size; well below gRPC's default 4 MB inbound message limit. */
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /** Files at least this large are memory-mapped instead of read into the heap. */
+    static final long DEFAULT_MAP_THRESHOLD = 256 * 1024;
+
+    // Region mapped at once; bounds address space use for multi-GB files
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    // Content types by lower-case extension; probeContentType may consult the file system on every call
+    private static final Map<String, String> MIME_TYPES = new ConcurrentHashMap<>();
+
+    private final int chunkSize;
+    private final long mapThreshold;
+    private final FileContentCache cache;
+    private ByteBuffer buffer;
+
+    ResultFileSender() {
+        this(null);
+    }
+
+    ResultFileSender(FileContentCache cache) {
+        // Windows keeps mapped files locked, which would stop UG4 from rewriting its output
+        this(DEFAULT_CHUNK_SIZE, isWindows() ? Long.MAX_VALUE : DEFAULT_MAP_THRESHOLD, cache);
+    }
+
+    ResultFileSender(int chunkSize, long mapThreshold, FileContentCache cache) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.mapThreshold = mapThreshold;
+        this.cache = cache;
+    }
+
+    /**
+     * Sends {@code path} to {@code observer} under {@code filename}. The file size is
+     * captured when the file is opened; bytes appended afterwards are not sent.
+     */
+    void send(Path path, String filename, String mimeType, StreamObserver<FileData> observer) throws IOException {
+        send(path, filename, mimeType, observer, null, false);
+    }
+
+    /**
+     * Like {@link #send(Path, String, String, StreamObserver)}, but continues an interrupted
+     * transfer at {@code resume}'s offset if the file still has the expected size and
+     * modification time. Otherwise, or if {@code resume} is null, the whole file is sent.
+     *
+     * @param settled true if the readiness tracker reported the file as completely written;
+     *                only then may it be sent from a mapping
+     * @return the size of the file as sent
+     */
+    long send(Path path, String filename, String mimeType, StreamObserver<FileData> observer,
+              ResumePoint resume, boolean settled) throws IOException {
+        return send(path, filename, mimeType, observer, resume, settled, -1);
+    }
+
+    /**
+     * Sends the bytes appended to {@code path} since it was {@code from} bytes long, as chunks
+     * marked {@link FileChunk#getAppend() append}. Sends nothing if the file has not grown.
+     *
+     * @return the file size the client holds afterwards
+     */
+    long sendAppended(Path path, String filename, String mimeType, StreamObserver<FileData> observer,
+                      long from) throws IOException {
+        // A growing file is never settled
+        return send(path, filename, mimeType, observer, null, false, from);
+    }
+
+    // appendFrom < 0 sends the whole file, or its rest after resume
+    private long send(Path path, String filename, String mimeType, StreamObserver<FileData> observer,
+                      ResumePoint resume, boolean settled, long appendFrom) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        long totalSize;
+        long lastModified;
+        try {
+            totalSize = channel.size();
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        boolean append = appendFrom >= 0;
+        MappedSource source = new MappedSource(channel, path, filename, totalSize, lastModified, append);
+        try {
+            if (append && appendFrom >= totalSize) {
+                return totalSize;
+            }
+            // A growing file is not worth caching; each appended range is read once anyway
+            ByteString cached = !append && cache != null ? cache.get(path, totalSize, lastModified) : null;
+            boolean mapped = settled && totalSize >= mapThreshold;
+            MappedByteBuffer window = null;
+            long windowStart = 0;
+            long offset = append ? appendFrom : resumeOffset(resume, totalSize, lastModified);
+            long first = offset;
+            try {
+                do {
+                    int length = (int) Math.min(chunkSize, totalSize - offset);
+                    ByteString content;
+                    boolean guarded = false;
+                    if (cached != null) {
+                        content = cached.substring((int) offset, (int) offset + length);
+                    } else if (mapped) {
+                        if (!source.valid()) {
+                            throw new IOException("File changed during transfer: " + path);
+                        }
+                        if (window == null || offset + length > windowStart + window.capacity()) {
+                            windowStart = offset;
+                            long windowSize = Math.min(Math.max(MAP_WINDOW_SIZE, chunkSize), totalSize - offset);
+                            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+                        }
+                        content = UnsafeByteOperations.unsafeWrap(window.slice((int) (offset - windowStart), length));
+                        guarded = true;
+                    } else {
+                        content = readSlice(channel, offset, length);
+                    }
+                    boolean last = offset + length >= totalSize;
+                    if (last && !guarded && !source.valid()) {
+                        throw new IOException("File changed during transfer: " + path);
+                    }
+                    FileData message = FileData.newBuilder()
+                            .setFilename(filename)
+                            .setMimeType(mimeType)
+                            .setContent(content)
+                            .setChunk(FileChunk.newBuilder()
+                                    .setOffset(offset)
+                                    .setTotalSize(totalSize)
+                                    .setLast(last)
+                                    .setLastModifiedMs(lastModified)
+                                    .setAppend(append)
+                                    .build())
+                            .build();
+                    if (guarded) {
+                        emit(observer, message, source);
+                    } else {
+                        observer.onNext(message);
+                    }
+                    offset += length;
+                } while (offset < totalSize);
+            } catch (IOException e) {
+                // Until a chunk went out the caller may skip the file; after that the client
+                // holds part of it and would never see the last chunk
+                if (offset > first) {
+                    observer.onError(Status.ABORTED
+                            .withDescription(source.source() + " changed while it was sent")
+                            .asRuntimeException());
+                }
+                throw e;
+            }
+            return totalSize;
+        } finally {
+            source.released();
+        }
+    }
+
+    /**
+     * Sends {@code path} as a single, unchunked message. Used by streams whose consumers expect
+     * one message per file. Settled files of at least the map threshold are sent from a mapping
+     * like the chunks of {@link #send}; all others are read into the heap.
+     *
+     * @param settled true if the readiness tracker reported the file as completely written
+     * @throws IOException also if the file changed while it was read, or is too large for one message
+     */
+    void sendWhole(Path path, String filename, String mimeType, StreamObserver<FileData> observer,
+                   boolean settled) throws IOException {
+        FileData.Builder message = FileData.newBuilder()
+                .setFilename(filename)
+                .setMimeType(mimeType);
+        ByteString cached = cache != null ? cache.get(path) : null;
+        if (cached != null) {
+            observer.onNext(message.setContent(cached).build());
+            return;
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        MappedSource source;
+        try {
+            source = new MappedSource(channel, path, filename, channel.size(), Files.getLastModifiedTime(path).toMillis(), false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        try {
+            long size = source.totalSize;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large for one message: " + path);
+            }
+            if (settled && size >= mapThreshold) {
+                ByteString content = UnsafeByteOperations.unsafeWrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                emit(observer, message.setContent(content).build(), source);
+            } else {
+                // The array is never touched again, so wrapping it saves the second copy
+                ByteString content = UnsafeByteOperations.unsafeWrap(Files.readAllBytes(path));
+                if (content.size() != size || !source.valid()) {
+                    throw new IOException("File changed during transfer: " + path);
+                }
+                observer.onNext(message.setContent(content).build());
+            }
+        } finally {
+            source.released();
+        }
+    }
+
+    // A flow-controlled stream writes the message later and asks the source again first; any
+    // other observer is expected to be done with it when onNext returns, as gRPC's own are
+    @SuppressWarnings("unchecked")
+    private static void emit(StreamObserver<FileData> observer, FileData message, MappedSource source) {
+        if (observer instanceof FlowControlledStream) {
+            ((FlowControlledStream<FileData>) observer).onNext(message, source.retain());
+        } else {
+            observer.onNext(message);
+        }
+    }
+
+    /**
+     * A file sent from mappings. Keeps the file open until the stream has written or dropped
+     * every message that wraps the mapping, and tells whether the file still is the version
+     * the chunk headers announce: a file truncated while a message waits would fault when
+     * gRPC copies it, and one rewritten in place would change bytes already described.
+     */
+    private static final class MappedSource implements FlowControlledStream.Guard {
+        final FileChannel channel;
+        final Path path;
+        final String filename;
+        final long totalSize;
+        final long lastModified;
+        final boolean append;
+        // One for the sender while it sends, one per queued message
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        MappedSource(FileChannel channel, Path path, String filename, long totalSize, long lastModified, boolean append) {
+            this.channel = channel;
+            this.path = path;
+            this.filename = filename;
+            this.totalSize = totalSize;
+            this.lastModified = lastModified;
+            this.append = append;
+        }
+
+        MappedSource retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        // Appending only needs the sent range to be intact; a whole file must be the announced version
+        @Override
+        public boolean valid() {
+            try {
+                long size = channel.size();
+                return append
+                        ? size >= totalSize
+                        : size == totalSize && Files.getLastModifiedTime(path).toMillis() == lastModified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String source() {
+            return "Result file " + filename;
+        }
+
+        @Override
+        public void released() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Read-only; nothing is lost
+                }
+            }
+        }
+    }
+
+    /** Content type of a result file, "application/octet-stream" if unknown. */
+    static String mimeTypeOf(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String extension = dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+        return MIME_TYPES.computeIfAbsent(extension, e -> {
+            try {
+                String type = Files.probeContentType(path);
+                return type != null ? type : "application/octet-stream";
+            } catch (IOException ex) {
+                return "application/octet-stream";
+            }
+        });
+    }
+
+    private static long resumeOffset(ResumePoint resume, long totalSize, long lastModified) {
+        if (resume == null
+                || resume.getExpectedSize() != totalSize
+                || resume.getExpectedMtimeMs() != lastModified
+                || resume.getOffset() <= 0
+                || resume.getOffset() >= totalSize) {
+            return 0;
+        }
+        return resume.getOffset();
+    }
+
+    private ByteString readSlice(FileChannel channel, long offset, int length) throws IOException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(chunkSize);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset + buffer.position());
+            if (n < 0) {
+                throw new IOException("File was truncated during transfer at offset " + (offset + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return ByteString.copyFrom(buffer);
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("win");
+    }
+}
@@ -0,0 +1,311 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Numbered output events of one simulation: a file became ready, a ready file was modified,
+ * the simulation finished.
+ *
+ * <p>The journal watches the simulation's output directory through the shared
+ * {@link DirectoryWatchRegistry} while the simulation runs or anyone is attached, whether or not
+ * a client is connected, and hands each event with its sequence number to the attached result
+ * watchers. Sequence numbers start at 1 and only grow, so a client that has seen every event up
+ * to {@code N} can reattach with {@link #attach(Listener, long)} and is given just the files of
+ * later events. Every journal has its own {@link #getEpoch() epoch}: a rerun of a simulation
+ * starts a new journal whose numbers start at 1 again, and a sequence is only meaningful
+ * together with the epoch it was handed out with.
+ *
+ * <p>Events are appended to a file outside the output directory. The file is bounded: once it
+ * holds twice {@link #DEFAULT_CAPACITY} lines it is rewritten with only the newest event per file,
+ * and if more than the capacity of files remain the oldest are dropped. Replays from before a
+ * dropped event are no longer possible; callers fall back to listing the directory.
+ */
+final class ResultJournal implements DirectoryWatchRegistry.Listener {
+    private static final Logger logger = LoggerFactory.getLogger(ResultJournal.class);
+
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    enum EventType { READY, MODIFIED, FINISHED }
+
+    /** Receives the numbered events of a journal; the callbacks must not block. */
+    interface Listener {
+        boolean accepts(Path file);
+
+        void fileReady(Path file, long sequence);
+
+        /** Every change of a wanted file, before it is ready; not numbered. */
+        default void fileChanged(Path file) {
+        }
+
+        void simulationFinished(long sequence);
+    }
+
+    /** What an attaching listener missed. */
+    static final class Replay {
+        // Last event before the listener was attached
+        final long sequence;
+        // False if the events after the requested sequence are no longer (or not yet) known
+        final boolean available;
+        // Files of the missed events, oldest first; each file once
+        final List<Path> files;
+
+        private Replay(long sequence, boolean available, List<Path> files) {
+            this.sequence = sequence;
+            this.available = available;
+            this.files = files;
+        }
+    }
+
+    private final String simulationId;
+    private final Path root;
+    private final Path file;
+    private final DirectoryWatchRegistry registry;
+    private final int capacity;
+    private final String epoch = UUID.randomUUID().toString();
+    private final Set<Listener> listeners = new CopyOnWriteArraySet<>();
+
+    // Guarded by this
+    private final Set<String> seen = new HashSet<>();
+    private BufferedWriter writer;
+    private DirectoryWatchRegistry.Subscription subscription;
+    private long sequence;
+    private long floor;
+    private int lines;
+    private boolean finishing;
+    private long finishedSequence;
+    private boolean deleted;
+
+    ResultJournal(String simulationId, Path root, Path file, DirectoryWatchRegistry registry) throws IOException {
+        this(simulationId, root, file, registry, DEFAULT_CAPACITY);
+    }
+
+    ResultJournal(String simulationId, Path root, Path file, DirectoryWatchRegistry registry, int capacity) throws IOException {
+        this.simulationId = simulationId;
+        this.root = root.toAbsolutePath().normalize();
+        this.file = file;
+        this.registry = registry;
+        this.capacity = capacity;
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        synchronized (this) {
+            watch();
+        }
+    }
+
+    /**
+     * Attaches {@code listener} for all events after the current one and tells what it missed
+     * after {@code afterSequence}; 0 asks for nothing. A listener attached after the simulation
+     * finished is told so at once, unless it had seen that event.
+     */
+    synchronized Replay attach(Listener listener, long afterSequence) throws IOException {
+        if (deleted) {
+            throw new IOException("Journal of simulation " + simulationId + " is closed");
+        }
+        watch();
+        Replay replay = afterSequence > 0 ? replay(afterSequence) : new Replay(sequence, false, List.of());
+        listeners.add(listener);
+        if (finishedSequence > afterSequence) {
+            listener.simulationFinished(finishedSequence);
+        }
+        return replay;
+    }
+
+    synchronized void detach(Listener listener) {
+        listeners.remove(listener);
+        if (finishedSequence > 0 && listeners.isEmpty()) {
+            unwatch();
+        }
+    }
+
+    /** Identifies this journal among all journals of the simulation, past and future. */
+    String getEpoch() {
+        return epoch;
+    }
+
+    /** Number of the last event; every event up to it has been handed to the listeners. */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Records that the simulation finished, once the files it was still writing have settled.
+     * Afterwards the directory is only watched while listeners are attached.
+     */
+    synchronized void finish() {
+        if (finishing || deleted) return;
+        finishing = true;
+        registry.whenSettled(root).whenComplete((v, t) -> recordFinished());
+    }
+
+    /** Stops watching and removes the journal file. */
+    synchronized void delete() {
+        deleted = true;
+        listeners.clear();
+        unwatch();
+        closeWriter();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.debug("Failed to delete journal {}", file, e);
+        }
+    }
+
+    @Override
+    public boolean accepts(Path file) {
+        // Every output file is journaled, whatever the current subscribers want
+        return true;
+    }
+
+    @Override
+    public void fileChanged(Path file) {
+        for (Listener listener : listeners) {
+            if (listener.accepts(file)) {
+                listener.fileChanged(file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void fileReady(Path file) {
+        if (deleted) return;
+        String name = nameOf(file);
+        long seq = append(seen.add(name) ? EventType.READY : EventType.MODIFIED, name);
+        for (Listener listener : listeners) {
+            if (listener.accepts(file)) {
+                listener.fileReady(file, seq);
+            }
+        }
+    }
+
+    private synchronized void recordFinished() {
+        if (deleted || finishedSequence > 0) return;
+        finishedSequence = append(EventType.FINISHED, "");
+        logger.info("Simulation {} finished at journal sequence {}", simulationId, finishedSequence);
+        for (Listener listener : listeners) {
+            listener.simulationFinished(finishedSequence);
+        }
+        if (listeners.isEmpty()) {
+            unwatch();
+        }
+    }
+
+    private void watch() throws IOException {
+        if (subscription == null) {
+            subscription = registry.subscribe(root, this);
+        }
+    }
+
+    private void unwatch() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+    }
+
+    // Caller holds this; numbers the event even if it cannot be written
+    private long append(EventType type, String name) {
+        long seq = ++sequence;
+        if (writer == null) {
+            // Unwritten events cannot be replayed
+            floor = seq;
+            return seq;
+        }
+        try {
+            writer.write(seq + "\t" + type + "\t" + name);
+            writer.newLine();
+            writer.flush();
+            if (++lines > 2 * capacity) {
+                compact();
+            }
+        } catch (IOException e) {
+            logger.warn("Journal of simulation {} is no longer written: {}", simulationId, e.getMessage());
+            closeWriter();
+            floor = seq;
+        }
+        return seq;
+    }
+
+    // Keeps the newest event per file, and of those at most capacity
+    private void compact() throws IOException {
+        writer.close();
+        writer = null;
+        Map<String, String> newest = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length < 3) continue;
+                // Re-inserted so the map stays in sequence order
+                newest.remove(fields[2]);
+                newest.put(fields[2], line);
+            }
+        }
+        for (Iterator<String> it = newest.values().iterator(); newest.size() > capacity && it.hasNext(); ) {
+            floor = Math.max(floor, Long.parseLong(it.next().split("\t", 2)[0]));
+            it.remove();
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(compacted, newest.values(), StandardCharsets.UTF_8);
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = newest.size();
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        logger.debug("Compacted journal of simulation {} to {} events", simulationId, lines);
+    }
+
+    // Caller holds this
+    private Replay replay(long afterSequence) throws IOException {
+        if (writer == null || afterSequence < floor || afterSequence > sequence) {
+            return new Replay(sequence, false, List.of());
+        }
+        writer.flush();
+        Map<String, Path> files = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length < 3 || Long.parseLong(fields[0]) <= afterSequence
+                        || EventType.FINISHED.name().equals(fields[1])) {
+                    continue;
+                }
+                files.remove(fields[2]);
+                files.put(fields[2], root.resolve(fields[2]));
+            }
+        }
+        return new Replay(sequence, true, new ArrayList<>(files.values()));
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close journal {}", file, e);
+        }
+        writer = null;
+    }
+
+    // Path below the output directory, with / as separator
+    private String nameOf(Path file) {
+        return root.relativize(file.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -1,6 +1,6 @@
 package com.simlab.ug.server;
 
-import com.google.protobuf.ByteString;
+import com.simlab.ug.common.FilePatternSet;
 import com.simlab.ug.grpc.*;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
@@ -9,19 +9,31 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBase {
     private static final Logger logger = LoggerFactory.getLogger(ResultsServiceImpl.class);
 
+    // How long a GLTF request waits for its files to settle before reading the busy ones into the heap
+    private static final long SETTLE_WAIT_MS = 500;
+
     private final GltfGroupManager groupManager = new GltfGroupManager();
     private final ExecutorService watcherExecutor = Executors.newCachedThreadPool();
 
     private volatile String defaultRootDirectory;
-    private volatile List<String> allowedPatterns = null; // optional whitelist patterns provided by client
+    private volatile FilePatternSet allowedPatterns = FilePatternSet.of(); // optional whitelist patterns provided by client
+    private volatile int streamQueueCapacity = FlowControlledStream.DEFAULT_CAPACITY;
+    private volatile FlowControlledStream.OverflowPolicy streamPolicy = FlowControlledStream.OverflowPolicy.BLOCK;
+    private volatile StreamCompression compression;
+    private volatile TransferScheduler transferScheduler;
+    private volatile FileContentCache contentCache;
+    private volatile FileReadinessTracker readinessTracker;
 
     public ResultsServiceImpl(String defaultRootDirectory) {
         this.defaultRootDirectory = defaultRootDirectory;
@@ -33,7 +45,36 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
 
     // Optional: restrict which groups/files are exposed by pattern (glob) list
     public void setAllowedPatterns(List<String> patterns) {
-        this.allowedPatterns = patterns;
+        this.allowedPatterns = FilePatternSet.of(patterns);
+    }
+
+    public void setStreamQueueCapacity(int capacity) {
+        this.streamQueueCapacity = capacity;
+    }
+
+    // Policy for outgoing streams when a client falls behind
+    public void setStreamPolicy(FlowControlledStream.OverflowPolicy policy) {
+        this.streamPolicy = policy;
+    }
+
+    // Compression for GLTF file streams; null sends everything uncompressed
+    public void setCompression(StreamCompression compression) {
+        this.compression = compression;
+    }
+
+    // Uplink sharing between file streams; null sends without scheduling
+    public void setTransferScheduler(TransferScheduler transferScheduler) {
+        this.transferScheduler = transferScheduler;
+    }
+
+    // Contents of recently sent files, shared with the result streams; null reads every file from disk
+    public void setContentCache(FileContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    // Tells which GLTF files are completely written and may be sent from a mapping; null maps none
+    void setReadinessTracker(FileReadinessTracker readinessTracker) {
+        this.readinessTracker = readinessTracker;
     }
 
     @Override
@@ -42,14 +83,10 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
             String root = request.getRootDirectory().isEmpty() ? defaultRootDirectory : request.getRootDirectory();
             Path rootPath = Paths.get(root);
             List<GltfGroup> groups = groupManager.scanForGroups(rootPath);
-            if (allowedPatterns != null && !allowedPatterns.isEmpty()) {
-                java.util.regex.Pattern any = java.util.regex.Pattern.compile(
-                    allowedPatterns.stream()
-                        .map(p -> p.replace(".", "\\.").replace("*", ".*") )
-                        .reduce((a,b) -> a + "|" + b)
-                        .orElse(".*"));
+            FilePatternSet allowed = allowedPatterns;
+            if (!allowed.matchesAll()) {
                 groups = groups.stream()
-                        .filter(g -> any.matcher(g.getGroupName()).matches() || any.matcher(g.getPattern()).matches())
+                        .filter(g -> allowed.matches(g.getGroupName()) || allowed.matches(g.getPattern()))
                         .toList();
             }
             ListGltfGroupsResponse resp = ListGltfGroupsResponse.newBuilder().addAllGroups(groups).build();
@@ -62,7 +99,13 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
     }
 
     @Override
-    public void getGroupGltfFiles(GetGroupGltfFilesRequest request, StreamObserver<FileData> responseObserver) {
+    public void getGroupGltfFiles(GetGroupGltfFilesRequest request, StreamObserver<FileData> callObserver) {
+        FlowControlledStream<FileData> responseObserver = new FlowControlledStream<>(
+                callObserver, streamQueueCapacity, streamPolicy, file -> false);
+        if (compression != null) compression.applyToFiles(responseObserver);
+        if (transferScheduler != null) {
+            transferScheduler.apply(responseObserver, TransferScheduler.classOrDefault(request.getTransferClass(), TransferClass.INTERACTIVE));
+        }
         try {
             Optional<GltfGroup> maybeGroup = groupManager.getGroupById(request.getGroupId());
             if (maybeGroup.isEmpty()) {
@@ -81,17 +124,26 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
                 filesToSend.addAll(group.getFilesList());
             }
 
+            // Asked for all files up front, so they settle in parallel
+            FileReadinessTracker tracker = readinessTracker;
+            Map<GroupFile, CompletableFuture<Boolean>> settled = new HashMap<>();
+            if (tracker != null) {
+                for (GroupFile f : filesToSend) {
+                    settled.put(f, tracker.whenReady(Paths.get(f.getFullPath())));
+                }
+            }
+            long settleDeadline = System.currentTimeMillis() + SETTLE_WAIT_MS;
+
+            // Headsets opening the same time step are served from one read
+            ResultFileSender sender = new ResultFileSender(contentCache);
             for (GroupFile f : filesToSend) {
+                if (responseObserver.isClosed()) break;
                 Path path = Paths.get(f.getFullPath());
                 if (!Files.exists(path)) continue;
-                byte[] bytes = Files.readAllBytes(path);
                 String mime = Files.probeContentType(path);
                 if (mime == null) mime = "model/gltf+json";
-                responseObserver.onNext(FileData.newBuilder()
-                        .setFilename(f.getFilename())
-                        .setContent(ByteString.copyFrom(bytes))
-                        .setMimeType(mime)
-                        .build());
+                // GLTF consumers expect one message per file, so this stream stays unchunked
+                sender.sendWhole(path, f.getFilename(), mime, responseObserver, isSettled(settled.get(f), settleDeadline));
             }
             responseObserver.onCompleted();
         } catch (Exception e) {
@@ -100,8 +152,35 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
         }
     }
 
+    // Waits until the deadline at most; a file still busy then is not settled
+    private static boolean isSettled(CompletableFuture<Boolean> ready, long deadline) throws InterruptedException {
+        if (ready == null) {
+            return false;
+        }
+        try {
+            return ready.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        }
+    }
+
     @Override
-    public void subscribeGltfFileEvents(SubscribeGltfFileEventsRequest request, StreamObserver<GltfFileEvent> responseObserver) {
+    public void subscribeGltfFileEvents(SubscribeGltfFileEventsRequest request, StreamObserver<GltfFileEvent> callObserver) {
+        // A later GROUP_UPDATED carries the full group, so earlier ones are safe to drop
+        FlowControlledStream<GltfFileEvent> responseObserver = new FlowControlledStream<>(
+                callObserver, streamQueueCapacity, streamPolicy,
+                event -> event.getType() == GltfFileEventType.GROUP_UPDATED);
+        FilePatternSet latestOnlyPatterns = FilePatternSet.of(request.getLatestOnlyPatternsList());
+        // Ids of the groups that only get events for their newest step, and that step as last sent
+        Set<String> latestOnlyGroups = ConcurrentHashMap.newKeySet();
+        Map<String, Integer> newestSteps = new HashMap<>();
+        if (!latestOnlyPatterns.matchesAll()) {
+            responseObserver.dropSuperseded((newer, queued) -> latestOnlyGroups.contains(newer.getGroupId())
+                    && newer.getGroupId().equals(queued.getGroupId())
+                    && (newer.hasFile() && queued.hasFile()
+                        ? queued.getFile().getTimeStep() < newer.getFile().getTimeStep()
+                        : newer.getType() == GltfFileEventType.GROUP_UPDATED && queued.getType() == GltfFileEventType.GROUP_UPDATED));
+        }
         String root = request.getRootDirectory().isEmpty() ? defaultRootDirectory : request.getRootDirectory();
         Path rootPath = Paths.get(root);
 
@@ -117,6 +196,9 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
         try {
             List<GltfGroup> groups = groupManager.scanForGroups(rootPath);
             for (GltfGroup g : groups) {
+                if (isLatestOnly(g, latestOnlyPatterns)) {
+                    latestOnlyGroups.add(g.getGroupId());
+                }
                 responseObserver.onNext(GltfFileEvent.newBuilder()
                         .setType(GltfFileEventType.GROUP_CREATED)
                         .setGroupId(g.getGroupId())
@@ -148,6 +230,7 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
         watcherExecutor.submit(() -> {
             try {
                 while (true) {
+                    if (responseObserver.isClosed()) break;
                     WatchKey key = ws.poll(500, TimeUnit.MILLISECONDS);
                     if (key == null) {
                         if (Thread.currentThread().isInterrupted()) break;
@@ -169,8 +252,20 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
 
                             // Emit events for any matching group containing this file
                             for (GltfGroup g : groups) {
+                                boolean latestOnly = isLatestOnly(g, latestOnlyPatterns);
+                                if (latestOnly) {
+                                    latestOnlyGroups.add(g.getGroupId());
+                                }
                                 for (GroupFile gf : g.getFilesList()) {
                                     if (gf.getFullPath().equals(child.toAbsolutePath().toString())) {
+                                        Integer newest = newestSteps.get(g.getGroupId());
+                                        if (latestOnly && newest != null && gf.getTimeStep() < newest) {
+                                            // A newer step of this group was already sent
+                                            break;
+                                        }
+                                        if (latestOnly) {
+                                            newestSteps.put(g.getGroupId(), gf.getTimeStep());
+                                        }
                                         GltfFileEventType t = event.kind() == StandardWatchEventKinds.ENTRY_CREATE ? GltfFileEventType.FILE_CREATED : GltfFileEventType.FILE_MODIFIED;
                                         responseObserver.onNext(GltfFileEvent.newBuilder()
                                                 .setType(t)
@@ -202,7 +297,9 @@ public class ResultsServiceImpl extends ResultsServiceGrpc.ResultsServiceImplBas
             }
         });
     }
-}
-
-
 
+    private static boolean isLatestOnly(GltfGroup group, FilePatternSet latestOnlyPatterns) {
+        return group.getIsTimeSeries() && !latestOnlyPatterns.matchesAll()
+                && (latestOnlyPatterns.matches(group.getGroupName()) || latestOnlyPatterns.matches(group.getPattern()));
+    }
+}
@@ -27,9 +27,14 @@ public class ServerApplication extends Application {
     private Server grpcServer;
     private SimulationServiceImpl simulationService;
     private ResultsServiceImpl resultsService;
+    private StreamCompression compression;
+    private TransferScheduler transferScheduler;
+    private FileContentCache contentCache;
     private TextField portField;
     private TextField ugPathField;
     private TextField workingDirField;
+    private TextField uplinkField;
+    private TextField clientLimitField;
     private Button startButton;
     private Button stopButton;
     private TextArea logArea;
@@ -110,10 +115,24 @@ public class ServerApplication extends Application {
         grid.add(ugPathField, 1, 1);
         grid.add(browseUgButton, 2, 1);
         
+        // Uplink shared by all result streams; interactive streams get priority when it is saturated
+        Label uplinkLabel = new Label("Uplink Limit (MB/s, 0 = none):");
+        uplinkField = new TextField("0");
+        uplinkField.setPrefWidth(100);
+        // Keeps one client, e.g. a bulk download, from taking the whole uplink
+        Label clientLimitLabel = new Label("Per-Client Limit (MB/s, 0 = none):");
+        clientLimitField = new TextField("0");
+        clientLimitField.setPrefWidth(100);
+        
         grid.add(workDirLabel, 0, 2);
         grid.add(workingDirField, 1, 2);
         grid.add(browseWorkDirButton, 2, 2);
         
+        grid.add(uplinkLabel, 0, 3);
+        grid.add(uplinkField, 1, 3);
+        grid.add(clientLimitLabel, 0, 4);
+        grid.add(clientLimitField, 1, 4);
+        
         TitledPane pane = new TitledPane("Server Configuration", grid);
         pane.setCollapsible(false);
         return pane;
@@ -199,17 +218,41 @@ public class ServerApplication extends Application {
                 return;
             }
             
+            double uplinkMBps = parseRate(uplinkField);
+            if (uplinkMBps < 0) {
+                showAlert("Error", "Invalid uplink limit");
+                return;
+            }
+            double clientMBps = parseRate(clientLimitField);
+            if (clientMBps < 0) {
+                showAlert("Error", "Invalid per-client limit");
+                return;
+            }
+            
             simulationService = new SimulationServiceImpl();
             simulationService.setUgPath(ugPath);
             simulationService.setInitialWorkingDirectory(workingDirField.getText());
-//            resultsService = new ResultsServiceImpl(workingDirField.getText());
-//            simulationService.setResultsService(resultsService);
+            compression = new StreamCompression();
+            simulationService.setCompression(compression);
+            transferScheduler = new TransferScheduler();
+            transferScheduler.setGlobalRate((long) (uplinkMBps * 1_000_000));
+            transferScheduler.setClientRate((long) (clientMBps * 1_000_000));
+            simulationService.setTransferScheduler(transferScheduler);
+            contentCache = new FileContentCache();
+            simulationService.setContentCache(contentCache);
+            // GLTF files of the working directory, for headsets connecting to the server directly
+            resultsService = new ResultsServiceImpl(workingDirField.getText());
+            resultsService.setCompression(compression);
+            resultsService.setTransferScheduler(transferScheduler);
+            resultsService.setContentCache(contentCache);
+            resultsService.setReadinessTracker(simulationService.getReadinessTracker());
             
-            grpcServer = ServerBuilder.forPort(port)
+            ServerBuilder<?> builder = ServerBuilder.forPort(port)
                     .addService(simulationService)
-//                    .addService(resultsService)
-                    .build()
-                    .start();
+                    .addService(resultsService);
+            compression.install(builder);
+            transferScheduler.install(builder);
+            grpcServer = builder.build().start();
             
             log("Server started on port " + port);
             log("UG4 executable: " + ugPath);
@@ -223,6 +266,8 @@ public class ServerApplication extends Application {
                 portField.setDisable(true);
                 ugPathField.setDisable(true);
                 workingDirField.setDisable(true);
+                uplinkField.setDisable(true);
+                clientLimitField.setDisable(true);
             });
             
             // Start monitoring thread
@@ -236,10 +281,23 @@ public class ServerApplication extends Application {
         }
     }
     
+    // MB/s entered in field; -1 if it is no number of at least 0
+    private static double parseRate(TextField field) {
+        try {
+            double rate = Double.parseDouble(field.getText().trim());
+            return rate >= 0 ? rate : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private void stopServer() {
         if (grpcServer != null) {
             try {
                 grpcServer.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+                if (simulationService != null) {
+                    simulationService.stopAllWatchers();
+                }
                 log("Server stopped");
                 
                 Platform.runLater(() -> {
@@ -250,6 +308,8 @@ public class ServerApplication extends Application {
                     portField.setDisable(false);
                     ugPathField.setDisable(false);
                     workingDirField.setDisable(false);
+                    uplinkField.setDisable(false);
+                    clientLimitField.setDisable(false);
                     activeSimulationsList.getItems().clear();
                 });
                 
@@ -278,6 +338,35 @@ public class ServerApplication extends Application {
                                     exec.getProgress() * 100);
                                 activeSimulationsList.getItems().add(display);
                             }
+                            // How far watching reduces change events to file sends
+                            long events = simulationService.getResultEventsReceived();
+                            if (events > 0) {
+                                activeSimulationsList.getItems().add(String.format(
+                                    "Result events: %d received, %d coalesced, %d files sent",
+                                    events,
+                                    simulationService.getResultEventsCoalesced(),
+                                    simulationService.getResultFilesSent()));
+                            }
+                            // Scheduled streams that had to wait for their share of the uplink
+                            if (transferScheduler != null) {
+                                for (TransferScheduler.Flow flow : transferScheduler.getActiveFlows()) {
+                                    if (flow.waitNanos.get() > 0) {
+                                        activeSimulationsList.getItems().add("Uplink " + flow);
+                                    }
+                                }
+                            }
+                            // Files served from memory instead of disk
+                            if (contentCache != null && contentCache.getHits() + contentCache.getMisses() > 0) {
+                                activeSimulationsList.getItems().add("Content cache: " + contentCache);
+                            }
+                            // Compressed transfers in progress, with ratio and CPU time
+                            if (compression != null) {
+                                for (StreamCompression.StreamStats stats : compression.getActiveStreams()) {
+                                    if (stats.compressedMessages.get() > 0) {
+                                        activeSimulationsList.getItems().add("Transfer " + stats);
+                                    }
+                                }
+                            }
                         });
                     }
                 } catch (InterruptedException e) {
@@ -1,8 +1,14 @@
 package com.simlab.ug.server;
 
+import com.google.protobuf.ByteString;
 import com.simlab.ug.grpc.*;
+import com.simlab.ug.common.DeltaSync;
+import com.simlab.ug.common.FilePatternSet;
 import com.simlab.ug.common.LuaScriptParser;
 import com.simlab.ug.common.SimulationExecutor;
+import com.simlab.ug.common.TimeStepName;
+import io.grpc.Context;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,22 +16,25 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import java.io.IOException;
-import java.nio.file.*;
-import java.nio.file.attribute.FileTime;
-import java.time.Duration;
-import java.util.Locale;
-import java.util.Objects;
-import java.util.concurrent.TimeUnit;
-
-import static java.nio.file.StandardWatchEventKinds.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServiceImplBase {
     private static final Logger logger = LoggerFactory.getLogger(SimulationServiceImpl.class);
@@ -33,10 +42,26 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
     private final Map<String, SimulationExecutor> activeSimulations = new ConcurrentHashMap<>();
     private final Map<String, String> completedSimulationDirs = new ConcurrentHashMap<>();
     private final Map<String, ResultWatcher> activeWatchers = new ConcurrentHashMap<>();
+    // Numbered output events per simulation, replayed to resubscribing clients
+    private final Map<String, ResultJournal> journals = new ConcurrentHashMap<>();
     private final AtomicInteger watcherCounter = new AtomicInteger(0);
     private String ugPath = "";
     private String workingDirectory = System.getProperty("user.dir");
     private final LuaScriptParser scriptParser = new LuaScriptParser();
+    private final ContentHashCache hashCache = new ContentHashCache();
+    private final FileReadinessTracker readinessTracker = new FileReadinessTracker(new OpenFileProbe(this::simulationProcesses));
+    private final DirectoryWatchRegistry watchRegistry = new DirectoryWatchRegistry(readinessTracker);
+    private final AtomicLong resultFilesSent = new AtomicLong();
+    private volatile StreamCompression compression;
+    private volatile TransferScheduler transferScheduler;
+    private volatile FileContentCache contentCache;
+    private VtuTranscoder vtuTranscoder;
+    private Path journalDirectory;
+    
+    // Outgoing stream queue settings; see FlowControlledStream
+    private volatile int streamQueueCapacity = FlowControlledStream.DEFAULT_CAPACITY;
+    private volatile FlowControlledStream.OverflowPolicy resultStreamPolicy = FlowControlledStream.OverflowPolicy.BLOCK;
+    private volatile FlowControlledStream.OverflowPolicy updateStreamPolicy = FlowControlledStream.OverflowPolicy.DROP_STALE;
     
     @Override
     public void getServerStatus(Empty request, StreamObserver<ServerStatus> responseObserver) {
@@ -115,7 +140,11 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
     
     @Override
     public void runSimulation(RunSimulationRequest request, 
-                             StreamObserver<SimulationUpdate> responseObserver) {
+                             StreamObserver<SimulationUpdate> callObserver) {
+        // Log and progress updates may be dropped for a slow client; results and errors never are
+        StreamObserver<SimulationUpdate> responseObserver = new FlowControlledStream<>(
+                callObserver, streamQueueCapacity, updateStreamPolicy,
+                update -> update.getType() == UpdateType.LOG || update.getType() == UpdateType.PROGRESS);
         String simulationId = request.getSimulationId();
         if (simulationId == null || simulationId.isEmpty()) {
             simulationId = UUID.randomUUID().toString();
@@ -132,6 +161,12 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
             );
             
             activeSimulations.put(simulationId, executor);
+            // Journaled from the start, so files written while no client is connected can be replayed
+            ResultJournal previousJournal = journals.put(simulationId, new ResultJournal(simulationId,
+                    resolveOutputDirectory(simulationId), journalFile(simulationId), watchRegistry));
+            if (previousJournal != null) {
+                previousJournal.delete();
+            }
 
             String finalSimulationId = simulationId;
             executor.execute(new SimulationExecutor.UpdateListener() {
@@ -163,7 +198,7 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
                 }
                 
                 @Override
-                public void onComplete(SimulationState state, long duration, java.util.List<String> outputFiles) {
+                public void onComplete(SimulationState state, long duration, List<String> outputFiles) {
                     // Store the output directory for completed simulations
                     SimulationExecutor completedExecutor = activeSimulations.get(finalSimulationId);
                     if (completedExecutor != null && completedExecutor.getOutputDirectory() != null) {
@@ -192,6 +227,7 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
                             .build());
                     responseObserver.onCompleted();
                     activeSimulations.remove(finalSimulationId);
+                    finishJournal(finalSimulationId);
                 }
                 
                 @Override
@@ -208,6 +244,7 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
                                     .build())
                             .build());
                     activeSimulations.remove(finalSimulationId);
+                    finishJournal(finalSimulationId);
                 }
             });
             
@@ -234,6 +271,7 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
         if (executor != null) {
             executor.stop();
             activeSimulations.remove(simulationId);
+            finishJournal(simulationId);
             
             // Stop and remove any watchers for this simulation
             stopWatchersForSimulation(simulationId);
@@ -263,37 +301,19 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
     
     @Override
     public void getSimulationResults(GetResultsRequest request, 
-                                    StreamObserver<FileData> responseObserver) {
+                                    StreamObserver<FileData> callObserver) {
+        // File chunks are never dropped: DROP_STALE blocks like BLOCK on this stream
+        FlowControlledStream<FileData> responseObserver = new FlowControlledStream<>(
+                callObserver, streamQueueCapacity, resultStreamPolicy, chunk -> false);
+        if (compression != null) compression.applyToFiles(responseObserver);
+        if (transferScheduler != null) {
+            transferScheduler.apply(responseObserver, TransferScheduler.classOrDefault(request.getTransferClass(), TransferClass.BULK));
+        }
         try {
             String simulationId = request.getSimulationId();
             logger.info("Getting results for simulation: " + simulationId);
             
-            // First check if there's an active simulation with custom output directory
-            SimulationExecutor executor = activeSimulations.get(simulationId);
-            Path outputDir = null;
-            
-            if (executor != null && executor.getOutputDirectory() != null) {
-                // Use the executor's output directory
-                File outDir = new File(executor.getOutputDirectory());
-                if (!outDir.isAbsolute()) {
-                    outDir = new File(workingDirectory, executor.getOutputDirectory());
-                }
-                outputDir = outDir.toPath();
-                logger.info("Using active executor output directory: " + outputDir);
-            } else if (completedSimulationDirs.containsKey(simulationId)) {
-                // Check completed simulations
-                String completedDir = completedSimulationDirs.get(simulationId);
-                File outDir = new File(completedDir);
-                if (!outDir.isAbsolute()) {
-                    outDir = new File(workingDirectory, completedDir);
-                }
-                outputDir = outDir.toPath();
-                logger.info("Using completed simulation output directory: " + outputDir);
-            } else {
-                // Fall back to default output directory structure
-                outputDir = Paths.get(workingDirectory, "output", simulationId);
-                logger.info("Using default output directory: " + outputDir);
-            }
+            Path outputDir = resolveOutputDirectory(simulationId);
             
             if (!Files.exists(outputDir)) {
                 logger.warn("Output directory does not exist: " + outputDir);
@@ -301,52 +321,81 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
                 return;
             }
             
-            List<String> patterns = request.getFilePatternsList();
-            logger.info("Looking for files matching patterns: " + patterns);
+            FilePatternSet patterns = FilePatternSet.of(request.getFilePatternsList());
+            logger.info("Looking for files matching patterns: " + request.getFilePatternsList());
             
-            Files.walk(outputDir)
-                    .filter(Files::isRegularFile)
-                    .filter(path -> matchesPatterns(path, patterns))
-                    .forEach(path -> {
+            ResultCursor previous;
+            try {
+                previous = request.getCursor().isEmpty() ? null : ResultCursor.parse(request.getCursor());
+            } catch (IllegalArgumentException e) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription(e.getMessage())
+                        .asRuntimeException());
+                return;
+            }
+            long modifiedAfter = request.getModifiedAfterMs();
+            ResultCursor next = ResultCursor.startingAt(System.currentTimeMillis());
+            
+            // Only files changed since the previous call wait for readiness and are sent; those
+            // are recorded in the cursor once sent, the others right away
+            Map<Path, CompletableFuture<Boolean>> changed = new LinkedHashMap<>();
+            Map<Path, DirectoryScanner.Entry> entries = new HashMap<>();
+            Map<Path, String> names = new HashMap<>();
+            for (DirectoryScanner.Entry entry : DirectoryScanner.scan(outputDir, patterns::matches)) {
+                String name = outputDir.relativize(entry.path).toString().replace(File.separatorChar, '/');
+                long size = entry.attrs.size();
+                long lastModified = entry.attrs.lastModifiedTime().toMillis();
+                if (lastModified > modifiedAfter && (previous == null || previous.isNew(name, size, lastModified))) {
+                    changed.put(entry.path, readinessTracker.whenReady(entry.path));
+                    entries.put(entry.path, entry);
+                    names.put(entry.path, name);
+                } else {
+                    next.seen(name, size, lastModified);
+                }
+            }
+            if (previous != null || modifiedAfter > 0) {
+                logger.info("{} file(s) changed since the previous call", changed.size());
+            }
+            
+            ResultFileSender sender = new ResultFileSender(contentCache);
+            Map<String, ResumePoint> resumePoints = indexResumePoints(request.getResumePointsList());
+            changed.forEach((path, ready) -> {
+                        if (responseObserver.isClosed()) {
+                            return;
+                        }
                         try {
 
-                            try {
-                                boolean ready = FileWriteDetector.waitUntilReady(path);
-
-                                if(!ready) {
-                                    logger.info("File not ready: " + path);
-                                    System.out.println("File not ready: " + path);
-                                    return;
-                                } else {
-                                    logger.info("File ready: " + path);
-                                    System.out.println("File ready: " + path);
-                                }
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            } catch (InterruptedException e) {
-                                throw new RuntimeException(e);
+                            if (!ready.join()) {
+                                logger.info("File not ready: " + path);
+                                System.out.println("File not ready: " + path);
+                                next.pending(names.get(path));
+                                return;
                             }
 
                             logger.info("Sending file: " + path.getFileName());
                             System.out.println("Sending file: " + path.getFileName());
 
-                            byte[] content = Files.readAllBytes(path);
-                            String mimeType = Files.probeContentType(path);
-                            if (mimeType == null) {
-                                mimeType = "application/octet-stream";
-                            }
+                            String mimeType = ResultFileSender.mimeTypeOf(path);
                             
-                            responseObserver.onNext(FileData.newBuilder()
-                                    .setFilename(path.getFileName().toString())
-                                    .setContent(com.google.protobuf.ByteString.copyFrom(content))
-                                    .setMimeType(mimeType)
-                                    .build());
+                            String filename = path.getFileName().toString();
+                            sender.send(path, filename, mimeType, responseObserver, resumePoints.remove(filename), true);
+                            // The scanned version; if a newer one was sent, the next call merely sends it again
+                            DirectoryScanner.Entry entry = entries.get(path);
+                            next.seen(names.get(path), entry.attrs.size(), entry.attrs.lastModifiedTime().toMillis());
                         } catch (IOException e) {
                             logger.error("Error reading file: " + path, e);
                             System.out.println("Error reading file: " + path);
+                            next.pending(names.get(path));
                         }
                     });
             
+            // Queued behind every chunk: a chunk that cannot be written fails the call, so the
+            // client only gets the cursor once every file it records as seen has arrived
+            if (request.getReturnCursor() && !responseObserver.isClosed()) {
+                responseObserver.onNext(FileData.newBuilder()
+                        .setCursor(next.encode())
+                        .build());
+            }
             responseObserver.onCompleted();
             logger.info("Completed sending results for simulation: " + simulationId);
         } catch (Exception e) {
@@ -356,18 +405,35 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
     }
 
     @Override
-    public void subscribeResults(SubscribeResultsRequest request, StreamObserver<FileData> responseObserver) {
+    public void subscribeResults(SubscribeResultsRequest request, StreamObserver<FileData> callObserver) {
+        FlowControlledStream<FileData> responseObserver = new FlowControlledStream<>(
+                callObserver, streamQueueCapacity, resultStreamPolicy, chunk -> false);
+        if (compression != null) compression.applyToFiles(responseObserver);
+        if (transferScheduler != null) {
+            transferScheduler.apply(responseObserver, TransferScheduler.classOrDefault(request.getTransferClass(), TransferClass.INTERACTIVE));
+        }
 
         logger.info("Subscribing to results for simulation: " + request.getSimulationId());
 
         try {
             String simulationId = request.getSimulationId();
-            java.util.List<String> patterns = request.getFilePatternsList();
+            // Compiled once; matched against every file event of this subscription
+            FilePatternSet patterns = FilePatternSet.of(request.getFilePatternsList());
             boolean includeExisting = request.getIncludeExisting();
-            
-            // Stop any existing watchers for this simulation first
-            // This handles the case where a client reconnects and tries to watch the same simulation
-            stopWatchersForSimulation(simulationId);
+            Map<String, ResumePoint> resumePoints = indexResumePoints(request.getResumePointsList());
+            Map<String, String> haveFiles = new ConcurrentHashMap<>();
+            for (HaveFile have : request.getHaveFilesList()) {
+                haveFiles.put(have.getFilename(), have.getSha256());
+            }
+            // Version (size and mtime) of each file this subscriber holds; a version is sent once,
+            // and with delta_updates later versions are announced instead of resent
+            Map<String, String> deliveredFiles = new ConcurrentHashMap<>();
+            VtuTranscoder transcoder = request.getTranscodeVtu() ? getVtuTranscoder() : null;
+            boolean batchSmallFiles = request.getBatchSmallFiles();
+            FilePatternSet followPatterns = FilePatternSet.of(request.getFollowPatternsList());
+            FileFollower follower = followPatterns.matchesAll() ? null : new FileFollower(followPatterns);
+            FilePatternSet latestOnlyPatterns = FilePatternSet.of(request.getLatestOnlyPatternsList());
+            FilePatternSet latestOnly = latestOnlyPatterns.matchesAll() ? null : latestOnlyPatterns;
             
             // Generate unique watcher ID for this subscription
             String watcherId = simulationId + "_watcher_" + watcherCounter.incrementAndGet();
@@ -424,90 +490,61 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
                 }
             }
 
-            // Optionally send existing files first
-            if (includeExisting) {
-                try {
-                    Files.walk(outputDir)
-                            .filter(Files::isRegularFile)
-                            .filter(path -> matchesPatterns(path, patterns))
-                            .forEach(path -> {
-                                try {
-
-                                    try {
-                                        FileWriteDetector.waitUntilReady(path);
-                                    } catch (IOException | InterruptedException e) {
-//                                        throw new RuntimeException(e);
-                                        logger.warn("Error waiting for file to be ready: " + path, e);
-                                    }
-
-                                    byte[] content = Files.readAllBytes(path);
-                                    String mimeType = Files.probeContentType(path);
-                                    if (mimeType == null) mimeType = "application/octet-stream";
-
-                                    responseObserver.onNext(FileData.newBuilder()
-                                            .setFilename(path.getFileName().toString())
-                                            .setContent(com.google.protobuf.ByteString.copyFrom(content))
-                                            .setMimeType(mimeType)
-                                            .build());
-                                } catch (IOException e) {
-                                    logger.warn("Failed to read existing file: " + path, e);
-                                }
-                            });
-                } catch (IOException e) {
-                    logger.warn("Failed walking existing files", e);
-                }
-            }
-
-            // Setup watch service for new or modified files
-            WatchService watchService = FileSystems.getDefault().newWatchService();
-            // Register directories recursively
-            try {
-                // Always register the main output directory
-                outputDir.register(watchService,
-                        StandardWatchEventKinds.ENTRY_CREATE,
-                        StandardWatchEventKinds.ENTRY_MODIFY);
-                logger.info("Registered watch service for directory: {}", outputDir);
-                
-                // Also register any subdirectories that already exist
-                Files.walk(outputDir)
-                        .filter(Files::isDirectory)
-                        .filter(dir -> !dir.equals(outputDir)) // Skip the root, already registered
-                        .forEach(dir -> {
-                            try {
-                                dir.register(watchService,
-                                        StandardWatchEventKinds.ENTRY_CREATE,
-                                        StandardWatchEventKinds.ENTRY_MODIFY);
-                                logger.debug("Registered subdirectory: {}", dir);
-                            } catch (IOException e) {
-                                logger.warn("Failed to register subdirectory: {}", dir, e);
-                            }
-                        });
-            } catch (IOException e) {
-                logger.error("Failed to register watch service for directory: {}", outputDir, e);
-                responseObserver.onError(e);
-                try { watchService.close(); } catch (IOException ignored) {}
+            ResultJournal journal = journals.get(simulationId);
+            if (journal == null) {
+                responseObserver.onError(new IllegalStateException("No result journal for simulation " + simulationId));
                 return;
             }
+            long afterSequence = request.getAfterSequence();
+            if (afterSequence > 0 && !journal.getEpoch().equals(request.getJournalEpoch())) {
+                // The sequence is of an earlier run's journal and means nothing in this one
+                logger.info("Journal of simulation {} was recreated since sequence {}, sending existing files", simulationId, afterSequence);
+                afterSequence = 0;
+                includeExisting = true;
+            }
 
-            // Create and start watcher
+            // Create the watcher and attach it before looking at existing files, so that events
+            // from then on are queued for it and none fall between the two
+            WatcherSettings settings = new WatcherSettings();
+            settings.afterSequence = afterSequence;
+            settings.patterns = patterns;
+            settings.latestOnly = latestOnly;
+            settings.resumePoints = resumePoints;
+            settings.haveFiles = haveFiles;
+            settings.deliveredFiles = deliveredFiles;
+            settings.deltaUpdates = request.getDeltaUpdates();
+            settings.transcoder = transcoder;
+            settings.follower = follower;
+            settings.atomicSteps = request.getAtomicSteps();
             ResultWatcher resultWatcher = new ResultWatcher(
                     watcherId,
                     simulationId,
-                    watchService,
-                    patterns,
+                    journal,
+                    settings,
+                    hashCache,
+                    contentCache,
+                    batchSmallFiles ? new ResultBatcher(responseObserver, contentCache) : null,
+                    resultFilesSent,
                     responseObserver
             );
             
             // Store watcher reference
             activeWatchers.put(watcherId, resultWatcher);
             
-            // Start the watcher thread
-            resultWatcher.start();
+            ResultJournal.Replay replay;
+            try {
+                replay = resultWatcher.attach();
+            } catch (IOException e) {
+                logger.error("Failed to watch directory: {}", outputDir, e);
+                activeWatchers.remove(watcherId);
+                responseObserver.onError(e);
+                return;
+            }
             
             // Set up cleanup when client disconnects
-            io.grpc.Context.current().addListener(new io.grpc.Context.CancellationListener() {
+            Context.current().addListener(new Context.CancellationListener() {
                 @Override
-                public void cancelled(io.grpc.Context context) {
+                public void cancelled(Context context) {
                     logger.info("Client disconnected or subscription cancelled, stopping watcher: " + watcherId);
                     System.out.println("Server: Client disconnected, stopping watcher: " + watcherId);
                     ResultWatcher watcher = activeWatchers.remove(watcherId);
@@ -515,7 +552,84 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
                         watcher.stop();
                     }
                 }
-            }, java.util.concurrent.Executors.newSingleThreadExecutor());
+            }, Executors.newSingleThreadExecutor());
+
+            // A resuming client gets the files of the events it missed; if the journal no longer
+            // reaches back that far, it gets all existing files like with include_existing
+            Map<Path, CompletableFuture<Boolean>> missed = null;
+            if (afterSequence > 0) {
+                if (replay.available) {
+                    missed = new LinkedHashMap<>();
+                    for (Path path : replay.files) {
+                        if (patterns.matches(path) && Files.isRegularFile(path)) {
+                            // Journaled files were ready when their event was recorded
+                            missed.put(path, CompletableFuture.completedFuture(true));
+                        }
+                    }
+                    logger.info("Replaying {} file(s) after journal sequence {} for watcher {}", missed.size(), afterSequence, watcherId);
+                } else {
+                    logger.info("Journal of simulation {} cannot replay after sequence {}, sending existing files", simulationId, afterSequence);
+                    includeExisting = true;
+                }
+            }
+
+            // Optionally send existing files first
+            if (missed != null || includeExisting) {
+                ResultFileSender sender = new ResultFileSender(contentCache);
+                ResultBatcher batcher = batchSmallFiles ? new ResultBatcher(responseObserver, contentCache) : null;
+                try {
+                    Map<Path, CompletableFuture<Boolean>> existing = missed != null ? missed : whenMatchingFilesReady(outputDir, patterns);
+                    if (latestOnly != null) {
+                        existing = newestStepsOnly(existing, latestOnly);
+                    }
+                    existing.forEach((path, ready) -> {
+                        if (responseObserver.isClosed()) {
+                            return;
+                        }
+                        try {
+
+                            // Followed files are sent as they are, even while still being written
+                            boolean follow = follower != null && follower.follows(path);
+                            if (!follow && !ready.join()) {
+                                logger.info("File not ready: " + path);
+                                return;
+                            }
+
+                            String filename = path.getFileName().toString();
+                            String version = fileVersion(path);
+                            // A transcoded copy stays on disk while it is read, even if the file changes meanwhile
+                            try (VtuTranscoder.Copy copy = transcoder != null && !follow ? transcoder.transcoded(path) : null) {
+                                Path source = copy != null ? copy.path : path;
+                                if (clientHasFile(haveFiles, filename, source)) {
+                                    if (follow) follower.sent(path, filename, Files.size(path));
+                                    return;
+                                }
+
+                                String mimeType = ResultFileSender.mimeTypeOf(path);
+
+                                if (batcher != null && !follow && batcher.accepts(Files.size(source))) {
+                                    batcher.add(source, filename, mimeType);
+                                } else {
+                                    long size = sender.send(source, filename, mimeType, responseObserver, resumePoints.remove(filename), !follow);
+                                    if (follow) follower.sent(path, filename, size);
+                                }
+                            }
+                            deliveredFiles.put(filename, version);
+                            resultFilesSent.incrementAndGet();
+                        } catch (IOException e) {
+                            logger.warn("Failed to read existing file: " + path, e);
+                        }
+                    });
+                    if (batcher != null) {
+                        batcher.flush();
+                    }
+                } catch (IOException e) {
+                    logger.warn("Failed walking existing files", e);
+                }
+            }
+
+            // Start sending what was queued meanwhile and everything from now on
+            resultWatcher.start();
             
             logger.info("Started watcher {} for simulation {} watching directory: {}", watcherId, simulationId, outputDir);
             System.out.println("Server: Started watcher " + watcherId + " for simulation " + simulationId + " watching: " + outputDir);
@@ -528,6 +642,108 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
         }
     }
 
+    @Override
+    public void listResultFiles(ListResultFilesRequest request, StreamObserver<ListResultFilesResponse> responseObserver) {
+        try {
+            Path outputDir = resolveOutputDirectory(request.getSimulationId());
+            ListResultFilesResponse.Builder response = ListResultFilesResponse.newBuilder();
+            if (Files.exists(outputDir)) {
+                List<Path> files;
+                try (Stream<Path> walk = Files.walk(outputDir)) {
+                    files = walk.filter(Files::isRegularFile)
+                            .filter(FilePatternSet.of(request.getFilePatternsList())::matches)
+                            .collect(Collectors.toList());
+                }
+                for (Path path : files) {
+                    try {
+                        long size = Files.size(path);
+                        long lastModified = Files.getLastModifiedTime(path).toMillis();
+                        response.addFiles(ResultFileInfo.newBuilder()
+                                .setFilename(path.getFileName().toString())
+                                .setSize(size)
+                                .setLastModifiedMs(lastModified)
+                                .setSha256(hashCache.sha256(path, size, lastModified))
+                                .build());
+                    } catch (IOException e) {
+                        // File vanished or is unreadable; leave it out of the manifest
+                        logger.debug("Skipping file in manifest: {}", path, e);
+                    }
+                }
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.error("Error listing result files", e);
+            responseObserver.onError(e);
+        }
+    }
+
+    @Override
+    public void getFileDelta(FileDeltaRequest request, StreamObserver<FileDelta> callObserver) {
+        FlowControlledStream<FileDelta> responseObserver = new FlowControlledStream<>(
+                callObserver, streamQueueCapacity, resultStreamPolicy, delta -> false);
+        if (compression != null) compression.applyToDeltas(responseObserver);
+        // Deltas patch files a live subscription announced
+        if (transferScheduler != null) transferScheduler.apply(responseObserver, TransferClass.INTERACTIVE);
+        int blockSize = request.getBlockSize();
+        if (blockSize < DeltaSync.MIN_BLOCK_SIZE || blockSize > DeltaSync.MAX_BLOCK_SIZE) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Unsupported block size: " + blockSize)
+                    .asRuntimeException());
+            return;
+        }
+        try {
+            String filename = request.getFilename();
+            Path file = findResultFile(resolveOutputDirectory(request.getSimulationId()), filename);
+            if (file == null) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("Result file not found: " + filename)
+                        .asRuntimeException());
+                return;
+            }
+            
+            List<DeltaSync.BlockSignature> basis = new ArrayList<>(request.getBlocksCount());
+            for (BlockSignature block : request.getBlocksList()) {
+                basis.add(new DeltaSync.BlockSignature(block.getWeak(), block.getStrong().toByteArray()));
+            }
+            
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            long[] rebuiltSize = {0};
+            long[] literalBytes = {0};
+            DeltaSync.delta(file, blockSize, basis, new DeltaSync.DeltaSink() {
+                @Override
+                public void copyBlock(int blockIndex) {
+                    rebuiltSize[0] += blockSize;
+                    responseObserver.onNext(FileDelta.newBuilder()
+                            .setFilename(filename)
+                            .setCopyBlock(blockIndex)
+                            .build());
+                }
+                
+                @Override
+                public void literal(byte[] data, int offset, int length) {
+                    rebuiltSize[0] += length;
+                    literalBytes[0] += length;
+                    responseObserver.onNext(FileDelta.newBuilder()
+                            .setFilename(filename)
+                            .setLiteral(ByteString.copyFrom(data, offset, length))
+                            .build());
+                }
+            });
+            responseObserver.onNext(FileDelta.newBuilder()
+                    .setFilename(filename)
+                    .setLast(true)
+                    .setTotalSize(rebuiltSize[0])
+                    .setLastModifiedMs(lastModified)
+                    .build());
+            responseObserver.onCompleted();
+            logger.info("Sent delta for {}: {} of {} bytes as literals", filename, literalBytes[0], rebuiltSize[0]);
+        } catch (Exception e) {
+            logger.error("Error computing file delta", e);
+            responseObserver.onError(e);
+        }
+    }
+
     public String getWorkingDirectory() {
         return workingDirectory;
     }
@@ -546,21 +762,208 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
         return ugPath;
     }
     
+    public void setStreamQueueCapacity(int capacity) {
+        this.streamQueueCapacity = capacity;
+    }
+    
+    // Policy for file streams when a client falls behind
+    public void setResultStreamPolicy(FlowControlledStream.OverflowPolicy policy) {
+        this.resultStreamPolicy = policy;
+    }
+    
+    // Policy for the runSimulation update stream when a client falls behind
+    public void setUpdateStreamPolicy(FlowControlledStream.OverflowPolicy policy) {
+        this.updateStreamPolicy = policy;
+    }
+    
+    // Compression for file streams; null sends everything uncompressed
+    public void setCompression(StreamCompression compression) {
+        this.compression = compression;
+    }
+    
+    // Uplink sharing between file streams; null sends without scheduling
+    public void setTransferScheduler(TransferScheduler transferScheduler) {
+        this.transferScheduler = transferScheduler;
+    }
+    
+    // How output trees are watched from now on; AUTO polls where file system events are unreliable
+    public void setChangeDetection(DirectoryWatchRegistry.ChangeDetection changeDetection) {
+        watchRegistry.setChangeDetection(changeDetection);
+    }
+    
+    // Contents of recently sent files, shared by all streams; null reads every file from disk
+    public void setContentCache(FileContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+    
+    // Debounce window for result files: a file is sent once it has had no changes for this long
+    public void setResultDebounce(Duration window) {
+        readinessTracker.setDebounce(window);
+    }
+    
+    // Shared with the GLTF service, which knows the UG4 processes only through this one
+    FileReadinessTracker getReadinessTracker() {
+        return readinessTracker;
+    }
+    
+    // File change events seen by result watchers, of which coalesced arrived while the file was still settling
+    public long getResultEventsReceived() {
+        return watchRegistry.getEventsReceived();
+    }
+    
+    public long getResultEventsCoalesced() {
+        return watchRegistry.getEventsCoalesced();
+    }
+    
+    // Result files sent to subscribers, counting one per subscriber
+    public long getResultFilesSent() {
+        return resultFilesSent.get();
+    }
+    
     public Map<String, SimulationExecutor> getActiveSimulations() {
         return activeSimulations;
     }
     
-    private boolean matchesPatterns(Path path, java.util.List<String> patterns) {
-        if (patterns.isEmpty()) {
-            return true;
+    private Collection<ProcessHandle> simulationProcesses() {
+        return activeSimulations.values().stream()
+                .map(SimulationExecutor::getProcessHandle)
+                .flatMap(Optional::stream)
+                .collect(Collectors.toList());
+    }
+    
+    private void finishJournal(String simulationId) {
+        ResultJournal journal = journals.get(simulationId);
+        if (journal != null) {
+            journal.finish();
+        }
+    }
+    
+    // Journals live outside the output directories so that writing them triggers no watch events
+    private synchronized Path journalFile(String simulationId) throws IOException {
+        if (journalDirectory == null) {
+            journalDirectory = Files.createTempDirectory("ug-journal-");
+        }
+        return journalDirectory.resolve(simulationId.replaceAll("[^A-Za-z0-9._-]", "_") + ".journal");
+    }
+    
+    // Starts the readiness wait for all matching files at once; iteration keeps walk order
+    private Map<Path, CompletableFuture<Boolean>> whenMatchingFilesReady(
+            Path outputDir, FilePatternSet patterns) throws IOException {
+        Map<Path, CompletableFuture<Boolean>> files = new LinkedHashMap<>();
+        try (Stream<Path> walk = Files.walk(outputDir)) {
+            walk.filter(Files::isRegularFile)
+                    .filter(patterns::matches)
+                    .forEach(path -> files.put(path, readinessTracker.whenReady(path)));
+        }
+        return files;
+    }
+    
+    // Drops files older than the newest step of their series, for the series latest_only applies to
+    private static <V> Map<Path, V> newestStepsOnly(Map<Path, V> files, FilePatternSet latestOnly) {
+        Map<String, TimeStepName> newest = new HashMap<>();
+        Map<Path, TimeStepName> steps = new HashMap<>();
+        for (Path path : files.keySet()) {
+            TimeStepName step = latestOnly.matches(path) ? TimeStepName.parse(path.getFileName().toString()) : null;
+            if (step != null) {
+                steps.put(path, step);
+                newest.merge(step.getSeries(), step, (a, b) -> b.isNewerThan(a) ? b : a);
+            }
+        }
+        files.keySet().removeIf(path -> {
+            TimeStepName step = steps.get(path);
+            return step != null && newest.get(step.getSeries()).isNewerThan(step);
+        });
+        return files;
+    }
+    
+    // Created on first use; its cache directory is only needed if a client asks for transcoding
+    private synchronized VtuTranscoder getVtuTranscoder() throws IOException {
+        if (vtuTranscoder == null) {
+            vtuTranscoder = new VtuTranscoder();
+        }
+        return vtuTranscoder;
+    }
+    
+    // Output directory of an active or completed simulation, or the default location
+    private Path resolveOutputDirectory(String simulationId) {
+        // First check if there's an active simulation with custom output directory
+        SimulationExecutor executor = activeSimulations.get(simulationId);
+        Path outputDir;
+        
+        if (executor != null && executor.getOutputDirectory() != null) {
+            // Use the executor's output directory
+            File outDir = new File(executor.getOutputDirectory());
+            if (!outDir.isAbsolute()) {
+                outDir = new File(workingDirectory, executor.getOutputDirectory());
+            }
+            outputDir = outDir.toPath();
+            logger.info("Using active executor output directory: " + outputDir);
+        } else if (completedSimulationDirs.containsKey(simulationId)) {
+            // Check completed simulations
+            String completedDir = completedSimulationDirs.get(simulationId);
+            File outDir = new File(completedDir);
+            if (!outDir.isAbsolute()) {
+                outDir = new File(workingDirectory, completedDir);
+            }
+            outputDir = outDir.toPath();
+            logger.info("Using completed simulation output directory: " + outputDir);
+        } else {
+            // Fall back to default output directory structure
+            outputDir = Paths.get(workingDirectory, "output", simulationId);
+            logger.info("Using default output directory: " + outputDir);
+        }
+        return outputDir;
+    }
+    
+    // Result files are addressed by file name only, as in FileData
+    private static Path findResultFile(Path outputDir, String filename) throws IOException {
+        if (!Files.exists(outputDir)) {
+            return null;
+        }
+        try (Stream<Path> walk = Files.walk(outputDir)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().equals(filename))
+                    .findFirst()
+                    .orElse(null);
+        }
+    }
+    
+    // Resume points are used at most once: later versions of a file are always sent in full
+    private static Map<String, ResumePoint> indexResumePoints(List<ResumePoint> points) {
+        Map<String, ResumePoint> byFilename = new ConcurrentHashMap<>();
+        for (ResumePoint point : points) {
+            byFilename.put(point.getFilename(), point);
+        }
+        return byFilename;
+    }
+    
+    // Identifies a settled version of a file; sending it again would give the client nothing new
+    private static String fileVersion(Path path) throws IOException {
+        BasicFileAttributes attrs =
+                Files.readAttributes(path, BasicFileAttributes.class);
+        return attrs.size() + "@" + attrs.lastModifiedTime().toMillis();
+    }
+    
+    // True if the client's have-list holds this file with identical contents
+    private static boolean clientHasFile(Map<String, String> haveFiles, String filename, Path path,
+                                         ContentHashCache hashCache) {
+        String clientHash = haveFiles.get(filename);
+        if (clientHash == null) {
+            return false;
         }
-        String filename = path.getFileName().toString();
-        return patterns.stream().anyMatch(pattern -> 
-                filename.matches(pattern.replace("*", ".*")));
+        try {
+            return clientHash.equalsIgnoreCase(hashCache.sha256(path));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private boolean clientHasFile(Map<String, String> haveFiles, String filename, Path path) {
+        return clientHasFile(haveFiles, filename, path, hashCache);
     }
     
     private String getStackTrace(Exception e) {
-        return java.util.Arrays.stream(e.getStackTrace())
+        return Arrays.stream(e.getStackTrace())
                 .map(StackTraceElement::toString)
                 .collect(Collectors.joining("\n"));
     }
@@ -582,7 +985,7 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
         });
     }
     
-    // Method to clean up all watchers (useful for shutdown)
+    // Stops all watchers and the readiness checks; called when the server shuts down
     public void stopAllWatchers() {
         logger.info("Stopping all {} active watchers", activeWatchers.size());
         activeWatchers.forEach((id, watcher) -> {
@@ -590,25 +993,115 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
             watcher.stop();
         });
         activeWatchers.clear();
+        journals.values().forEach(ResultJournal::delete);
+        journals.clear();
+        readinessTracker.shutdown();
+        synchronized (this) {
+            if (vtuTranscoder != null) {
+                vtuTranscoder.close();
+                vtuTranscoder = null;
+            }
+            if (journalDirectory != null) {
+                try {
+                    Files.deleteIfExists(journalDirectory);
+                } catch (IOException e) {
+                    logger.warn("Failed to clean up {}", journalDirectory, e);
+                }
+                journalDirectory = null;
+            }
+        }
     }
     
-    // Inner class to manage individual result watchers
-    private static class ResultWatcher {
+    // What one subscription asked for and what its client already holds; read by its ResultWatcher
+    private static final class WatcherSettings {
+        // Resume after this journal sequence; 0 starts fresh
+        long afterSequence;
+        FilePatternSet patterns;
+        // Null unless latest_only_patterns were given
+        FilePatternSet latestOnly;
+        Map<String, ResumePoint> resumePoints;
+        Map<String, String> haveFiles;
+        // Shared with the sending of existing files, so each version goes out once
+        Map<String, String> deliveredFiles;
+        boolean deltaUpdates;
+        // Null unless transcode_vtu
+        VtuTranscoder transcoder;
+        // Null unless follow_patterns were given
+        FileFollower follower;
+        boolean atomicSteps;
+    }
+
+    // Inner class to manage individual result watchers. Ready files come from the simulation's
+    // ResultJournal; each subscriber sends them on its own thread, so a slow client only holds
+    // up its own stream. Between files it tells the client up to which journal sequence it has
+    // everything, the point to resume from after a disconnect.
+    private static class ResultWatcher implements ResultJournal.Listener {
         private static final Logger logger = LoggerFactory.getLogger(ResultWatcher.class);
+        // Checkpoints are sent at most this often, and once the watcher is idle
+        private static final long CHECKPOINT_INTERVAL_MS = 1000;
         private final String watcherId;
         private final String simulationId;
-        private final WatchService watchService;
-        private final List<String> patterns;
+        private final ResultJournal journal;
+        private final long afterSequence;
+        private final FilePatternSet patterns;
+        private final FilePatternSet latestOnly;
+        private final Map<String, ResumePoint> resumePoints;
+        private final Map<String, String> haveFiles;
+        private final ContentHashCache hashCache;
+        private final boolean deltaUpdates;
+        private final Map<String, String> deliveredFiles;
+        private final VtuTranscoder transcoder;
+        private final ResultBatcher batcher;
+        private final FileFollower follower;
+        // Parallel time steps held until complete, guarded by readyFiles; null unless atomic_steps
+        private final StepAssembler steps;
+        // Complete steps by the queued file that stands for them, their header; guarded by readyFiles
+        private final Map<Path, StepAssembler.Step> readySteps = new HashMap<>();
+        private final AtomicLong totalFilesSent;
         private final StreamObserver<FileData> responseObserver;
+        private final ResultFileSender sender;
+        // Ready files waiting to be sent with the sequence of their oldest unsent event, guarded by
+        // itself. A file already queued is not queued again; it is read when its turn comes, so
+        // the last write wins.
+        private final Map<Path, Long> readyFiles = new LinkedHashMap<>();
+        // Newest step queued per series with latest_only, guarded by readyFiles
+        private final Map<String, Long> newestSteps = new HashMap<>();
+        private long notifications;
+        private long coalesced;
+        private long stale;
+        private long unchanged;
+        private long filesSent;
+        // Guarded by readyFiles; 0 until the simulation finished
+        private long finishedSequence;
+        // Only used by the watcher thread
+        private long checkpointed;
+        private long checkpointedAt;
+        private boolean finishedSent;
         private Thread watcherThread;
         private volatile boolean running = false;
         
-        public ResultWatcher(String watcherId, String simulationId, WatchService watchService,
-                           List<String> patterns, StreamObserver<FileData> responseObserver) {
+        public ResultWatcher(String watcherId, String simulationId, ResultJournal journal, WatcherSettings settings,
+                             ContentHashCache hashCache, FileContentCache contentCache, ResultBatcher batcher,
+                             AtomicLong totalFilesSent, StreamObserver<FileData> responseObserver) {
             this.watcherId = watcherId;
             this.simulationId = simulationId;
-            this.watchService = watchService;
-            this.patterns = patterns;
+            this.journal = journal;
+            this.afterSequence = settings.afterSequence;
+            this.checkpointed = settings.afterSequence;
+            this.patterns = settings.patterns;
+            this.latestOnly = settings.latestOnly;
+            this.resumePoints = settings.resumePoints;
+            this.haveFiles = settings.haveFiles;
+            this.hashCache = hashCache;
+            this.sender = new ResultFileSender(contentCache);
+            this.deltaUpdates = settings.deltaUpdates;
+            this.deliveredFiles = settings.deliveredFiles;
+            this.transcoder = settings.transcoder;
+            this.batcher = batcher;
+            this.follower = settings.follower;
+            this.steps = settings.atomicSteps
+                    ? new StepAssembler(piece -> deliveredFiles.containsKey(piece.getFileName().toString())) : null;
+            this.totalFilesSent = totalFilesSent;
             this.responseObserver = responseObserver;
         }
         
@@ -616,83 +1109,181 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
             return simulationId;
         }
         
-        public void start() {
+        @Override
+        public boolean accepts(Path file) {
+            // A step's header is part of the step even if the patterns only ask for its pieces
+            return running && (patterns.matches(file) || steps != null && StepAssembler.isHeader(file));
+        }
+        
+        @Override
+        public void fileReady(Path file, long sequence) {
+            if (steps != null) {
+                synchronized (readyFiles) {
+                    if (steps.accepts(file)) {
+                        StepAssembler.Step step = steps.add(file, sequence);
+                        if (step != null) {
+                            enqueueStep(step);
+                        }
+                        return;
+                    }
+                }
+            }
+            enqueue(file, sequence);
+        }
+        
+        @Override
+        public void fileChanged(Path file) {
+            // Followed files are sent while they grow, without waiting for them to be ready;
+            // such changes have no journal event and hold back no checkpoint
+            if (follower != null && follower.follows(file)) {
+                enqueue(file, Long.MAX_VALUE);
+            }
+        }
+        
+        @Override
+        public void simulationFinished(long sequence) {
+            synchronized (readyFiles) {
+                // Pieces still held will not be completed any more
+                if (steps != null) {
+                    steps.releaseAll().forEach(this::enqueue);
+                }
+                finishedSequence = sequence;
+                readyFiles.notifyAll();
+            }
+        }
+        
+        private void enqueue(Path file, long sequence) {
+            TimeStepName step = latestOnly != null && latestOnly.matches(file)
+                    ? TimeStepName.parse(file.getFileName().toString()) : null;
+            synchronized (readyFiles) {
+                notifications++;
+                if (step != null && !newestStep(step)) {
+                    stale++;
+                    return;
+                }
+                Long queued = readyFiles.get(file);
+                if (queued == null) {
+                    readyFiles.put(file, sequence);
+                    readyFiles.notifyAll();
+                } else {
+                    readyFiles.put(file, Math.min(queued, sequence));
+                    coalesced++;
+                }
+            }
+        }
+        
+        // Queues a complete step under its header; with latest_only it replaces older queued steps
+        private void enqueueStep(StepAssembler.Step step) {
+            TimeStepName name = latestOnly != null && latestOnly.matches(step.header)
+                    ? TimeStepName.parse(step.header.getFileName().toString()) : null;
+            synchronized (readyFiles) {
+                notifications++;
+                if (name != null && !newestStep(name)) {
+                    stale++;
+                    return;
+                }
+                readySteps.keySet().retainAll(readyFiles.keySet());
+                readyFiles.merge(step.header, step.sequence, Math::min);
+                readySteps.put(step.header, step);
+                readyFiles.notifyAll();
+            }
+        }
+        
+        // Sends held files whose step timed out on their own
+        private void releaseExpiredSteps() {
+            if (steps == null) return;
+            synchronized (readyFiles) {
+                steps.expired(System.currentTimeMillis()).forEach(this::enqueue);
+            }
+        }
+        
+        // With latest_only: false if a newer step of the series was queued before, otherwise
+        // drops queued older steps. Caller holds readyFiles.
+        private boolean newestStep(TimeStepName step) {
+            Long newest = newestSteps.get(step.getSeries());
+            if (newest != null && step.getStep() < newest) {
+                return false;
+            }
+            newestSteps.put(step.getSeries(), step.getStep());
+            readyFiles.keySet().removeIf(queued -> {
+                TimeStepName older = TimeStepName.parse(queued.getFileName().toString());
+                if (older != null && step.isNewerThan(older)) {
+                    stale++;
+                    return true;
+                }
+                return false;
+            });
+            return true;
+        }
+        
+        private Path nextReadyFile(long timeoutMs) throws InterruptedException {
+            synchronized (readyFiles) {
+                if (readyFiles.isEmpty()) {
+                    readyFiles.wait(timeoutMs);
+                }
+                Iterator<Path> it = readyFiles.keySet().iterator();
+                if (!it.hasNext()) return null;
+                Path next = it.next();
+                it.remove();
+                return next;
+            }
+        }
+        
+        /**
+         * Starts receiving events, which are queued until {@link #start}.
+         *
+         * @return the files of the events after {@code afterSequence} the client missed
+         */
+        public ResultJournal.Replay attach() throws IOException {
             running = true;
+            try {
+                return journal.attach(this, afterSequence);
+            } catch (IOException e) {
+                running = false;
+                throw e;
+            }
+        }
+        
+        public void start() {
+            if (!running) {
+                // Cancelled while the existing files were sent
+                return;
+            }
             watcherThread = new Thread(() -> {
                 try {
                     while (running && !Thread.currentThread().isInterrupted()) {
-                        WatchKey key = watchService.poll(500, java.util.concurrent.TimeUnit.MILLISECONDS);
-                        if (key == null) continue;
-                        
-                        Path dir = (Path) key.watchable();
-                        for (WatchEvent<?> event : key.pollEvents()) {
-                            if (!running) break;
-                            if (!(event.context() instanceof Path)) continue;
-                            
-                            Path name = (Path) event.context();
-                            Path child = dir.resolve(name);
-                            
-                            // If a new directory is created, register it for watching
-                            if (Files.isDirectory(child)) {
-                                try {
-                                    child.register(watchService,
-                                            StandardWatchEventKinds.ENTRY_CREATE,
-                                            StandardWatchEventKinds.ENTRY_MODIFY);
-                                    logger.info("Dynamically registered new subdirectory: {}", child);
-                                    System.out.println("Server: Dynamically registered new subdirectory: " + child);
-                                } catch (IOException e) {
-                                    logger.warn("Failed to register new subdirectory: {}", child, e);
-                                    System.err.println("Server: Failed to register new subdirectory: " + child);
-                                }
-                                continue;
-                            }
-                            
-                            if (!Files.isRegularFile(child)) continue;
-                            if (!matchesPatterns(child, patterns)) continue;
-                            
-                            try {
-                                boolean ready = FileWriteDetector.waitUntilReady(child);
-                                if (!ready) {
-                                    logger.info("File not ready: " + child);
-                                    continue;
-                                }
-                                
-                                byte[] content = Files.readAllBytes(child);
-                                String mimeType = Files.probeContentType(child);
-                                if (mimeType == null) mimeType = "application/octet-stream";
-                                
-                                logger.info("Sending file via watcher " + watcherId + ": " + child.getFileName());
-                                System.out.println("Server: Sending file via watcher " + watcherId + ": " + child.getFileName());
-                                
-                                synchronized(responseObserver) {
-                                    responseObserver.onNext(FileData.newBuilder()
-                                            .setFilename(child.getFileName().toString())
-                                            .setContent(com.google.protobuf.ByteString.copyFrom(content))
-                                            .setMimeType(mimeType)
-                                            .build());
-                                }
-                            } catch (Exception e) {
-                                logger.warn("Failed to process file in watcher " + watcherId + ": " + child, e);
-                                System.out.println("Server: Failed to process file in watcher " + watcherId + ": " + child);
+                        // Wake up in time to send a pending batch
+                        long timeout = batcher != null && batcher.hasPending() ? Math.max(1, batcher.millisUntilDue()) : 500;
+                        if (follower != null) timeout = Math.min(timeout, Math.max(1, follower.millisUntilDue()));
+                        if (steps != null) {
+                            synchronized (readyFiles) {
+                                timeout = Math.min(timeout, Math.max(1, steps.millisUntilDue(System.currentTimeMillis())));
                             }
                         }
-                        
-                        boolean valid = key.reset();
-                        if (!valid) {
-                            logger.warn("Watch key invalid for watcher " + watcherId);
-                            System.err.println("Watch key invalid for watcher " + watcherId);
-                            break;
+                        Path child = nextReadyFile(timeout);
+                        if (batcher != null) batcher.flushIfDue();
+                        if (follower != null) follower.takeDue().forEach(this::trySendFile);
+                        releaseExpiredSteps();
+                        if (child != null) {
+                            StepAssembler.Step step;
+                            synchronized (readyFiles) {
+                                step = readySteps.remove(child);
+                            }
+                            if (step != null) {
+                                sendStep(step);
+                            } else {
+                                trySendFile(child);
+                            }
                         }
+                        checkpoint();
                     }
                 } catch (InterruptedException e) {
                     logger.info("Watcher " + watcherId + " interrupted");
                     System.err.println("Server: Watcher " + watcherId + " interrupted");
                 } finally {
-                    try {
-                        watchService.close();
-                    } catch (IOException e) {
-                        logger.warn("Error closing watch service for watcher " + watcherId, e);
-                        System.err.println("Server: Error closing watch service for watcher " + watcherId);
+                    synchronized (readyFiles) {
+                        logger.info("Watcher {}: {} notifications, {} coalesced in queue, {} stale steps dropped, {} unchanged, {} files sent",
+                                watcherId, notifications, coalesced, stale, unchanged, filesSent);
                     }
                     logger.info("Watcher " + watcherId + " stopped");
                     System.out.println("Server: Watcher " + watcherId + " stopped");
@@ -703,6 +1294,174 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
             watcherThread.start();
         }
         
+        // Tells the client the sequence up to which it has every event's file: events of files
+        // still queued or deferred hold it back. Sent between files, so it arrives after them.
+        private void checkpoint() {
+            if (follower != null && follower.millisUntilDue() != Long.MAX_VALUE) {
+                return;
+            }
+            long upTo = journal.getSequence();
+            boolean finished;
+            synchronized (readyFiles) {
+                for (long sequence : readyFiles.values()) {
+                    upTo = Math.min(upTo, sequence - 1);
+                }
+                if (steps != null && !steps.isEmpty()) {
+                    upTo = Math.min(upTo, steps.minSequence() - 1);
+                }
+                finished = readyFiles.isEmpty() && finishedSequence > 0 && !finishedSent;
+            }
+            long now = System.currentTimeMillis();
+            if (!finished && (upTo <= checkpointed || now - checkpointedAt < CHECKPOINT_INTERVAL_MS)) {
+                return;
+            }
+            if (batcher != null) batcher.flush();
+            synchronized (responseObserver) {
+                responseObserver.onNext(FileData.newBuilder()
+                        .setSequence(Math.max(upTo, checkpointed))
+                        .setJournalEpoch(journal.getEpoch())
+                        .setSimulationFinished(finished)
+                        .build());
+            }
+            if (finished) {
+                finishedSent = true;
+                logger.info("Watcher {}: simulation {} finished, all files sent", watcherId, simulationId);
+            }
+            checkpointed = Math.max(upTo, checkpointed);
+            checkpointedAt = now;
+        }
+        
+        // Pieces first and the header last, so a viewer that opens the .pvtu finds every piece,
+        // then step_complete; nothing else is sent in between
+        private void sendStep(StepAssembler.Step step) {
+            synchronized (responseObserver) {
+                StepComplete.Builder complete = StepComplete.newBuilder()
+                        .setHeader(step.header.getFileName().toString());
+                for (Path piece : step.pieces) {
+                    trySendFile(piece, false);
+                    complete.addPieces(piece.getFileName().toString());
+                }
+                trySendFile(step.header, false);
+                if (batcher != null) batcher.flush();
+                responseObserver.onNext(FileData.newBuilder()
+                        .setStepComplete(complete)
+                        .build());
+            }
+            logger.debug("Watcher {}: sent step {} with {} pieces", watcherId, step.header.getFileName(), step.pieces.size());
+        }
+        
+        private void trySendFile(Path child) {
+            trySendFile(child, true);
+        }
+        
+        // Without allowDelta changed files are resent, so they are complete once the call returns
+        private void trySendFile(Path child, boolean allowDelta) {
+            try {
+                sendFile(child, allowDelta);
+            } catch (Exception e) {
+                logger.warn("Failed to process file in watcher " + watcherId + ": " + child, e);
+                System.out.println("Server: Failed to process file in watcher " + watcherId + ": " + child);
+            }
+        }
+        
+        private void sendFile(Path child, boolean allowDelta) throws IOException {
+            if (!Files.isRegularFile(child)) return;
+            
+            String filename = child.getFileName().toString();
+            String version = fileVersion(child);
+            if (version.equals(deliveredFiles.get(filename))) {
+                // Already sent, e.g. by the include_existing pass or for an event without a write
+                countUnchanged();
+                return;
+            }
+            String mimeType = ResultFileSender.mimeTypeOf(child);
+            
+            boolean follow = follower != null && follower.follows(child);
+            if (follow) {
+                if (follower.deferIfTooSoon(child, filename)) {
+                    return;
+                }
+                long from = follower.appendOffset(child, filename);
+                if (from >= 0) {
+                    if (batcher != null) batcher.flush();
+                    long size;
+                    synchronized(responseObserver) {
+                        size = sender.sendAppended(child, filename, mimeType, responseObserver, from);
+                    }
+                    logger.debug("Appended {} bytes of {} via watcher {}", size - from, filename, watcherId);
+                    follower.sent(child, filename, size);
+                    delivered(filename, version);
+                    return;
+                }
+                // Not sent before, truncated or rewritten: send it in full below
+            }
+            
+            if (transcoder != null && !follow) {
+                // The copy stays on disk while it is read, even if the file changes meanwhile
+                try (VtuTranscoder.Copy copy = transcoder.transcoded(child)) {
+                    sendWhole(child, copy.path, filename, version, mimeType, allowDelta, false);
+                }
+            } else {
+                sendWhole(child, child, filename, version, mimeType, allowDelta, follow);
+            }
+        }
+        
+        // Sends source, child itself or its transcoded copy, in full, as a delta announcement or in a batch
+        private void sendWhole(Path child, Path source, String filename, String version, String mimeType,
+                               boolean allowDelta, boolean follow) throws IOException {
+            if (clientHasFile(haveFiles, filename, source, hashCache)) {
+                if (follow) follower.sent(child, filename, Files.size(child));
+                return;
+            }
+            
+            // Small files are cheaper to resend in a batch than to patch with a delta round trip
+            if (batcher != null && !follow && batcher.accepts(Files.size(source))) {
+                batcher.add(source, filename, mimeType);
+                delivered(filename, version);
+                return;
+            }
+            
+            // Deltas are computed against the file on disk, so transcoded files are always resent
+            if (deltaUpdates && allowDelta && !follow && source == child && (deliveredFiles.containsKey(filename) || haveFiles.containsKey(filename))) {
+                // The client holds an older copy and pulls just the changes via GetFileDelta
+                logger.info("Announcing changed file via watcher {}: {}", watcherId, filename);
+                synchronized(responseObserver) {
+                    responseObserver.onNext(FileData.newBuilder()
+                            .setFilename(filename)
+                            .setDeltaAvailable(true)
+                            .build());
+                }
+                delivered(filename, version);
+                return;
+            }
+            
+            logger.info("Sending file via watcher " + watcherId + ": " + child.getFileName());
+            System.out.println("Server: Sending file via watcher " + watcherId + ": " + child.getFileName());
+            
+            if (batcher != null) batcher.flush();
+            // Hold the lock for the whole file so chunks of different files never interleave
+            long size;
+            synchronized(responseObserver) {
+                size = sender.send(source, filename, mimeType, responseObserver, resumePoints.remove(filename), !follow);
+            }
+            if (follow) follower.sent(child, filename, size);
+            delivered(filename, version);
+        }
+        
+        private void delivered(String filename, String version) {
+            deliveredFiles.put(filename, version);
+            totalFilesSent.incrementAndGet();
+            synchronized (readyFiles) {
+                filesSent++;
+            }
+        }
+        
+        private void countUnchanged() {
+            synchronized (readyFiles) {
+                unchanged++;
+            }
+        }
+        
         public void stop() {
             if (!running) {
                 logger.debug("Watcher {} already stopped", watcherId);
@@ -712,12 +1471,8 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
             running = false;
             logger.info("Stopping watcher {}", watcherId);
             
-            // Close the watch service first to interrupt the polling
-            try {
-                watchService.close();
-            } catch (IOException e) {
-                logger.warn("Error closing watch service for watcher {}", watcherId, e);
-            }
+            // Detach first; the journal stops watching once the simulation finished and nobody is left
+            journal.detach(this);
             
             if (watcherThread != null) {
                 watcherThread.interrupt();
@@ -732,271 +1487,7 @@ public class SimulationServiceImpl extends SimulationServiceGrpc.SimulationServi
                 }
             }
         }
-        
-        private boolean matchesPatterns(Path path, List<String> patterns) {
-            if (patterns.isEmpty()) {
-                return true;
-            }
-            String filename = path.getFileName().toString();
-            return patterns.stream().anyMatch(pattern -> 
-                    filename.matches(pattern.replace("*", ".*")));
-        }
     }
 
 
 }
-
-final class FileWriteDetector {
-
-    private FileWriteDetector() {}
-
-    /**
-     * Quick, best-effort check.
-     * On Windows: returns true if an exclusive (share-none) open fails with sharing violation.
-     * Elsewhere: samples size/mtime twice over a short window; if changing, assumes "being written".
-     */
-    public static boolean isBeingWrittenNow(Path file) throws IOException {
-        Objects.requireNonNull(file, "file");
-        if (!Files.exists(file) || !Files.isRegularFile(file)) {
-            throw new NoSuchFileException(file.toString());
-        }
-        if (isWindows()) {
-            WindowsExclusiveOpen.Result r = WindowsExclusiveOpen.tryOpenExclusive(file);
-            if (r == WindowsExclusiveOpen.Result.SHARING_VIOLATION) return true;      // someone has it open
-            if (r == WindowsExclusiveOpen.Result.SUCCESS) return false;                // no open handles => not busy
-            // Other errors: fall through to heuristic (permissions, etc.)
-        }
-        // Portable heuristic: if size/mtime change within probe window, assume "busy"
-        return !hasBeenQuietFor(file, Duration.ofMillis(600), Duration.ofMillis(650), Duration.ofMillis(150));
-    }
-
-    /**
-     * Wait until a file has been "quiet" (no size/mtime changes and no watch events)
-     * for at least {@code quietFor}. Returns true if it became ready before {@code timeout}.
-     * Works on Linux, macOS, and Windows. Uses WatchService + polling fallback.
-     */
-    public static boolean waitUntilReady(Path file,
-                                         Duration quietFor,
-                                         Duration timeout,
-                                         Duration pollInterval) throws IOException, InterruptedException {
-        Objects.requireNonNull(file, "file");
-        Objects.requireNonNull(quietFor, "quietFor");
-        Objects.requireNonNull(timeout, "timeout");
-        Objects.requireNonNull(pollInterval, "pollInterval");
-
-        System.out.println("Waiting for " + file + ":");
-
-        if (!Files.exists(file) || !Files.isRegularFile(file)) {
-            // You can choose to wait for creation instead; here we require it to exist.
-            throw new NoSuchFileException(file.toString());
-        }
-
-        final Path dir = file.getParent();
-        final String targetName = file.getFileName().toString();
-
-        long deadlineNanos = System.nanoTime() + timeout.toNanos();
-        long stableSince = System.nanoTime();
-
-        Snapshot last = Snapshot.take(file);
-
-        try (WatchService ws = dir.getFileSystem().newWatchService()) {
-            dir.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
-
-            while (true) {
-
-                System.out.println(" -> Waiting for " + file + " to become ready...");
-
-                // 1) React to FS events (if any)
-                long remainingPollMs = Math.max(1L, Math.min(pollInterval.toMillis(),
-                        TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadlineNanos - System.nanoTime()))));
-
-                WatchKey key = ws.poll(remainingPollMs, TimeUnit.MILLISECONDS);
-                if (key != null) {
-                    for (WatchEvent<?> evt : key.pollEvents()) {
-                        WatchEvent.Kind<?> kind = evt.kind();
-                        if (kind == OVERFLOW) continue;
-                        @SuppressWarnings("unchecked")
-                        Path ctx = ((WatchEvent<Path>) evt).context();
-                        if (ctx != null && ctx.getFileName().toString().equals(targetName)) {
-                            // Any visible change to our file restarts the quiet timer
-                            stableSince = System.nanoTime();
-                            // If it was deleted, we can decide to return false (not ready).
-                            if (kind == ENTRY_DELETE && !Files.exists(file)) {
-                                return false;
-                            }
-                        }
-                    }
-                    key.reset();
-                }
-
-                // 2) Check snapshot stability (size + mtime)
-                Snapshot now = Snapshot.take(file);
-                if (!now.exists) {
-                    // File disappeared during wait; treat as not ready.
-                    return false;
-                }
-                if (!now.equals(last)) {
-                    last = now;
-                    stableSince = System.nanoTime();
-                }
-
-                // 3) Windows fast-path: if no one has the file open AND quietFor elapsed, return true
-                if (isWindows()) {
-                    WindowsExclusiveOpen.Result r = WindowsExclusiveOpen.tryOpenExclusive(file);
-                    if (r == WindowsExclusiveOpen.Result.SUCCESS
-                            && elapsed(stableSince) >= quietFor.toNanos()) {
-                        return true;
-                    }
-                    // If sharing violation => likely being written; keep waiting.
-                }
-
-                // 4) Portable readiness: quiet period elapsed
-                if (elapsed(stableSince) >= quietFor.toNanos()) {
-                    return true;
-                }
-
-                // 5) Timeout?
-                if (System.nanoTime() > deadlineNanos) {
-                    return false;
-                }
-            }
-        }
-    }
-
-    /** Convenience overload with sensible defaults: quietFor=2s, timeout=2min, poll=200ms */
-    public static boolean waitUntilReady(Path file) throws IOException, InterruptedException {
-        return waitUntilReady(file, Duration.ofMillis(100), Duration.ofMinutes(2), Duration.ofMillis(10));
-    }
-
-    // ---- internals ---------------------------------------------------------------------------
-
-    private static boolean hasBeenQuietFor(Path file, Duration quietFor, Duration window, Duration step) throws IOException {
-        long stableSince = System.nanoTime();
-        Snapshot last = Snapshot.take(file);
-        long end = System.nanoTime() + window.toNanos();
-
-        while (System.nanoTime() < end) {
-            sleep(step);
-            Snapshot now = Snapshot.take(file);
-            if (!now.exists) return false;
-            if (!now.equals(last)) {
-                last = now;
-                stableSince = System.nanoTime();
-            }
-            if (elapsed(stableSince) >= quietFor.toNanos()) return true;
-        }
-        return elapsed(stableSince) >= quietFor.toNanos();
-    }
-
-    private static long elapsed(long sinceNano) {
-        return System.nanoTime() - sinceNano;
-    }
-
-    private static void sleep(Duration d) {
-        try { Thread.sleep(Math.max(1, d.toMillis())); } catch (InterruptedException ie) {
-            Thread.currentThread().interrupt();
-        }
-    }
-
-    private static boolean isWindows() {
-        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
-        return os.contains("win");
-    }
-
-    private static final class Snapshot {
-        final boolean exists;
-        final long size;
-        final long mtimeNanos;
-
-        private Snapshot(boolean exists, long size, long mtimeNanos) {
-            this.exists = exists; this.size = size; this.mtimeNanos = mtimeNanos;
-        }
-
-        static Snapshot take(Path p) throws IOException {
-            if (!Files.exists(p)) return new Snapshot(false, -1L, -1L);
-            long size = Files.size(p);
-            FileTime ft = Files.getLastModifiedTime(p);
-            return new Snapshot(true, size, ft.toMillis() * 1_000_000L); // coarse but portable
-        }
-
-        @Override public boolean equals(Object o) {
-            if (!(o instanceof Snapshot)) return false;
-            Snapshot s = (Snapshot) o;
-            return exists == s.exists && size == s.size && mtimeNanos == s.mtimeNanos;
-        }
-
-        @Override public int hashCode() { return (exists ? 1 : 0) * 31 + Long.hashCode(size) * 17 + Long.hashCode(mtimeNanos); }
-    }
-
-    // ------------------------ Windows exclusive-open check (via JNA) ---------------------------
-    // If you don't want the JNA dependency, you can stub WindowsExclusiveOpen.tryOpenExclusive()
-    // to return Result.UNKNOWN and the utility will rely purely on the stability heuristic.
-
-    private static final class WindowsExclusiveOpen {
-        enum Result { SUCCESS, SHARING_VIOLATION, OTHER_ERROR, UNKNOWN }
-
-        static Result tryOpenExclusive(Path path) {
-            if (!isWindows()) return Result.UNKNOWN;
-            try {
-                return Kernel32Exclusive.tryOpen(path);
-            } catch (Throwable t) {
-                // If JNA missing or any unexpected issue, fall back to heuristic path.
-                return Result.UNKNOWN;
-            }
-        }
-
-        // Minimal JNA surface
-        private static final class Kernel32Exclusive {
-//            // ---- JNA bits (compile-time dependency: net.java.dev.jna:jna) ----
-//            interface Kernel32 extends com.sun.jna.Library {
-//                Kernel32 INSTANCE = com.sun.jna.Native.load("kernel32", Kernel32.class);
-//
-//                com.sun.jna.ptr.IntByReference GetLastError(); // not used directly; we use Native.getLastError()
-//
-//                com.sun.jna.platform.win32.WinNT.HANDLE CreateFileW(
-//                        char[] lpFileName,
-//                        int dwDesiredAccess,
-//                        int dwShareMode,
-//                        com.sun.jna.Pointer lpSecurityAttributes,
-//                        int dwCreationDisposition,
-//                        int dwFlagsAndAttributes,
-//                        com.sun.jna.platform.win32.WinNT.HANDLE hTemplateFile
-//                );
-//
-//                boolean CloseHandle(com.sun.jna.platform.win32.WinNT.HANDLE hObject);
-//            }
-
-            // constants
-            private static final int GENERIC_READ = 0x80000000;
-            private static final int FILE_SHARE_NONE = 0x0;
-            private static final int OPEN_EXISTING = 3;
-            private static final int FILE_ATTRIBUTE_NORMAL = 0x00000080;
-
-            private static final int ERROR_SHARING_VIOLATION = 32;
-
-            static Result tryOpen(Path path) {
-//                char[] name = (path.toAbsolutePath().toString() + "\0").toCharArray();
-//                com.sun.jna.platform.win32.WinNT.HANDLE h = Kernel32.INSTANCE.CreateFileW(
-//                        name,
-//                        GENERIC_READ,
-//                        FILE_SHARE_NONE,           // <— No sharing allowed
-//                        com.sun.jna.Pointer.NULL,
-//                        OPEN_EXISTING,
-//                        FILE_ATTRIBUTE_NORMAL,
-//                        com.sun.jna.platform.win32.WinNT.HANDLE.NULL
-//                );
-//
-//                int lastErr = com.sun.jna.Native.getLastError();
-//                if (h == null || com.sun.jna.platform.win32.WinBase.INVALID_HANDLE_VALUE.equals(h)) {
-//                    if (lastErr == ERROR_SHARING_VIOLATION) return Result.SHARING_VIOLATION;
-//                    return Result.OTHER_ERROR;
-//                } else {
-//                    Kernel32.INSTANCE.CloseHandle(h);
-//                    return Result.SUCCESS;
-//                }
-
-                return Result.UNKNOWN;
-            }
-        }
-    }
-}
@@ -0,0 +1,223 @@
+package com.simlab.ug.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Holds back the pieces of parallel VTK time steps until the whole step can be sent.
+ *
+ * <p>Parallel UG4 runs write one {@code .vtu} piece per rank, e.g. {@code sol_t0042_p0003.vtu},
+ * and a {@code sol_t0042.pvtu} header whose {@code <Piece Source="...">} elements list them.
+ * Pieces are recognised by their name, or by a header that was read before, and held until
+ * their header is ready. The step is complete once the header and every piece it references
+ * are ready; pieces already delivered earlier count as ready. Readiness is decided once per step
+ * instead of for every piece a client would otherwise have to check.
+ *
+ * <p>Held files whose step is still incomplete after {@link #DEFAULT_TIMEOUT_MS}, e.g. pieces
+ * without a header, are released to be sent on their own. Not thread-safe.
+ */
+final class StepAssembler {
+
+    static final long DEFAULT_TIMEOUT_MS = 30_000;
+
+    // Rank suffix before or after the time step: sol_p0003_t0042.vtu or sol_t0042_p0003.vtu
+    private static final Pattern PIECE = Pattern.compile("(.*)_p\\d+((?:_t\\d+)?)\\.vtu", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SOURCE = Pattern.compile("<Piece\\b[^>]*?\\bSource\\s*=\\s*\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
+
+    /** A complete step: its pieces and the header that lists them. */
+    static final class Step {
+        final Path header;
+        // Held pieces in the order they became ready; delivered ones are not repeated
+        final List<Path> pieces;
+        // Smallest journal sequence of the step's events
+        final long sequence;
+
+        private Step(Path header, List<Path> pieces, long sequence) {
+            this.header = header;
+            this.pieces = pieces;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Pending {
+        final Map<Path, Long> pieces = new LinkedHashMap<>();
+        final long since;
+        Set<Path> expected;
+        long headerSequence = -1;
+
+        Pending(long since) {
+            this.since = since;
+        }
+
+        long sequence() {
+            long min = headerSequence >= 0 ? headerSequence : Long.MAX_VALUE;
+            for (long sequence : pieces.values()) {
+                min = Math.min(min, sequence);
+            }
+            return min;
+        }
+    }
+
+    private final Predicate<Path> delivered;
+    private final long timeoutMs;
+    // By header, oldest first
+    private final Map<Path, Pending> pending = new LinkedHashMap<>();
+    // Pieces listed by headers read so far
+    private final Map<Path, Path> headerOfPiece = new HashMap<>();
+
+    StepAssembler(Predicate<Path> delivered) {
+        this(delivered, DEFAULT_TIMEOUT_MS);
+    }
+
+    StepAssembler(Predicate<Path> delivered, long timeoutMs) {
+        this.delivered = delivered;
+        this.timeoutMs = timeoutMs;
+    }
+
+    static boolean isHeader(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".pvtu");
+    }
+
+    /**
+     * True if {@code file} is held by {@link #add}: a header, or a piece of an open step or one
+     * not delivered yet. A late event for a piece of a delivered step is sent on its own instead
+     * of opening a step that would only complete by timing out.
+     */
+    boolean accepts(Path file) {
+        if (isHeader(file)) {
+            return true;
+        }
+        file = normalize(file);
+        Path header = headerOf(file);
+        return header != null && (pending.containsKey(header) || !delivered.test(file));
+    }
+
+    /**
+     * Records that a header or piece is ready; only for files {@link #accepts} holds.
+     *
+     * @return the step this completes, or null
+     */
+    Step add(Path file, long sequence) {
+        file = normalize(file);
+        boolean header = isHeader(file);
+        Path key = header ? file : headerOf(file);
+        Pending step = pending.computeIfAbsent(key, k -> new Pending(System.currentTimeMillis()));
+        if (header) {
+            step.headerSequence = step.headerSequence >= 0 ? Math.min(step.headerSequence, sequence) : sequence;
+            step.expected = readSources(file);
+            for (Path piece : step.expected) {
+                headerOfPiece.put(piece, file);
+            }
+        } else {
+            step.pieces.merge(file, sequence, Math::min);
+        }
+        if (step.headerSequence < 0 || !isComplete(step)) {
+            return null;
+        }
+        pending.remove(key);
+        step.expected.forEach(headerOfPiece::remove);
+        return new Step(key, new ArrayList<>(step.pieces.keySet()), step.sequence());
+    }
+
+    /** Files of steps that waited too long, with their sequences, to be sent on their own. */
+    Map<Path, Long> expired(long now) {
+        Map<Path, Long> released = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Pending> entry = it.next();
+            if (now - entry.getValue().since >= timeoutMs) {
+                release(entry.getKey(), entry.getValue(), released);
+                it.remove();
+            }
+        }
+        return released;
+    }
+
+    /** Every held file, e.g. once the simulation finished and no more pieces will come. */
+    Map<Path, Long> releaseAll() {
+        Map<Path, Long> released = new LinkedHashMap<>();
+        pending.forEach((header, step) -> release(header, step, released));
+        pending.clear();
+        return released;
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /** Smallest sequence of a held file; {@link Long#MAX_VALUE} if none is held. */
+    long minSequence() {
+        long min = Long.MAX_VALUE;
+        for (Pending step : pending.values()) {
+            min = Math.min(min, step.sequence());
+        }
+        return min;
+    }
+
+    /** Milliseconds until the oldest held step times out; {@link Long#MAX_VALUE} if none is held. */
+    long millisUntilDue(long now) {
+        if (pending.isEmpty()) return Long.MAX_VALUE;
+        return Math.max(0, pending.values().iterator().next().since + timeoutMs - now);
+    }
+
+    private boolean isComplete(Pending step) {
+        for (Path piece : step.expected) {
+            if (!step.pieces.containsKey(piece) && !delivered.test(piece)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void release(Path header, Pending step, Map<Path, Long> released) {
+        released.putAll(step.pieces);
+        if (step.headerSequence >= 0) {
+            released.put(header, step.headerSequence);
+        }
+        if (step.expected != null) {
+            step.expected.forEach(headerOfPiece::remove);
+        }
+    }
+
+    // Header listing the piece, or the one its name points to; null if it is no piece
+    private Path headerOf(Path file) {
+        Path header = headerOfPiece.get(file);
+        if (header != null) {
+            return header;
+        }
+        Matcher m = PIECE.matcher(file.getFileName().toString());
+        return m.matches() ? file.resolveSibling(m.group(1) + m.group(2) + ".pvtu") : null;
+    }
+
+    // Piece files a header references, relative to its directory; none if it cannot be read
+    private static Set<Path> readSources(Path header) {
+        Set<Path> sources = new LinkedHashSet<>();
+        try {
+            // Headers are small ASCII XML
+            Matcher m = SOURCE.matcher(new String(Files.readAllBytes(header), StandardCharsets.ISO_8859_1));
+            while (m.find()) {
+                sources.add(normalize(header.resolveSibling(m.group(1))));
+            }
+        } catch (IOException e) {
+            // Sent with whatever pieces are held
+        }
+        return sources;
+    }
+
+    private static Path normalize(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,287 @@
+package com.simlab.ug.server;
+
+import com.google.protobuf.ByteString;
+import com.simlab.ug.common.ZstdCodec;
+import com.simlab.ug.grpc.FileData;
+import com.simlab.ug.grpc.FileDelta;
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.Context;
+import io.grpc.DecompressorRegistry;
+import io.grpc.Metadata;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerStreamTracer;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Message compression for file streams.
+ *
+ * <p>The encoding is negotiated per stream: the first entry of the preference list (zstd when
+ * its native library loads, then gzip) that the client lists in {@code grpc-accept-encoding}.
+ * Whether an individual message is compressed is decided by file extension, by sniffing the
+ * first bytes of the file for data that is already compressed, and by a CPU budget, so
+ * compression backs off while the cores are busy with simulations.
+ *
+ * <p>{@link #install} must be called on the server builder; it registers the codecs and a
+ * stream tracer that records uncompressed and wire bytes and compression CPU time per stream.
+ */
+final class StreamCompression {
+    private static final Logger logger = LoggerFactory.getLogger(StreamCompression.class);
+
+    // Per-stream statistics, attached to the call context by the tracer
+    static final Context.Key<StreamStats> STATS = Context.key("simlab-stream-compression");
+
+    private static final Metadata.Key<String> ACCEPT_ENCODING =
+            Metadata.Key.of("grpc-accept-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+    // Messages smaller than this are not worth the framing overhead
+    private static final int MIN_COMPRESS_SIZE = 1024;
+    // Bytes inspected at the start of a file to recognise compressed content
+    private static final int SNIFF_SIZE = 1024;
+    private static final long CPU_SAMPLE_INTERVAL_MS = 1000;
+
+    private final List<Codec> codecs = new ArrayList<>();
+    private final Set<StreamStats> activeStreams = ConcurrentHashMap.newKeySet();
+    private final AtomicLong totalUncompressedBytes = new AtomicLong();
+    private final AtomicLong totalWireBytes = new AtomicLong();
+    private final AtomicLong totalCpuNanos = new AtomicLong();
+
+    private volatile boolean enabled = true;
+    private volatile Set<String> compressibleExtensions = new HashSet<>(Arrays.asList(
+            "vtu", "vtp", "vts", "vtr", "vti", "vtk", "pvtu", "pvd", "gltf",
+            "txt", "log", "csv", "json", "xml", "lua", "ugx"));
+    private volatile double maxCpuLoad = 0.75;
+
+    private volatile long cpuSampledAt = 0;
+    private volatile double cpuLoad = 0;
+
+    StreamCompression() {
+        if (ZstdCodec.isAvailable()) {
+            codecs.add(new ZstdCodec());
+        }
+        codecs.add(new Codec.Gzip());
+    }
+
+    /** Registers the codecs and the statistics tracer with the server. */
+    void install(ServerBuilder<?> builder) {
+        CompressorRegistry compressors = CompressorRegistry.newEmptyInstance();
+        DecompressorRegistry decompressors = DecompressorRegistry.getDefaultInstance();
+        for (Codec codec : codecs) {
+            compressors.register(codec);
+            decompressors = decompressors.with(codec, true);
+        }
+        builder.compressorRegistry(compressors)
+                .decompressorRegistry(decompressors)
+                .addStreamTracerFactory(new TracerFactory());
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Extensions (without dot) whose content is compressed; anything else, e.g. .glb, is sent as is
+    void setCompressibleExtensions(Set<String> extensions) {
+        Set<String> normalized = new HashSet<>();
+        for (String e : extensions) {
+            normalized.add(e.toLowerCase(Locale.ROOT).replaceFirst("^\\.", ""));
+        }
+        this.compressibleExtensions = normalized;
+    }
+
+    // System CPU load (0..1) above which messages go out uncompressed
+    void setMaxCpuLoad(double maxCpuLoad) {
+        this.maxCpuLoad = maxCpuLoad;
+    }
+
+    /** Statistics of the streams that are currently open. */
+    List<StreamStats> getActiveStreams() {
+        return new ArrayList<>(activeStreams);
+    }
+
+    /** Uncompressed / wire bytes over all closed streams so far; 1.0 if nothing was sent. */
+    double getTotalRatio() {
+        long wire = totalWireBytes.get();
+        return wire == 0 ? 1.0 : (double) totalUncompressedBytes.get() / wire;
+    }
+
+    long getTotalCpuNanos() {
+        return totalCpuNanos.get();
+    }
+
+    /** Enables compression of file messages on {@code stream} if the client supports it. */
+    void applyToFiles(FlowControlledStream<FileData> stream) {
+        // Decisions are made on the first chunk of a file and reused for its later chunks
+        Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+        apply(stream, file -> {
+            if (file.getContent().size() < MIN_COMPRESS_SIZE) return false;
+            if (file.hasBatch()) {
+                return file.getBatch().getEntriesList().stream().anyMatch(e -> isCompressible(e.getFilename()));
+            }
+            if (!file.hasChunk() || file.getChunk().getOffset() == 0) {
+                boolean compress = isCompressible(file.getFilename()) && !isCompressed(file.getContent());
+                decisions.put(file.getFilename(), compress);
+                return compress;
+            }
+            return decisions.computeIfAbsent(file.getFilename(), this::isCompressible);
+        });
+    }
+
+    /** Enables compression of delta literals on {@code stream} if the client supports it. */
+    void applyToDeltas(FlowControlledStream<FileDelta> stream) {
+        apply(stream, delta -> delta.getLiteral().size() >= MIN_COMPRESS_SIZE
+                && isCompressible(delta.getFilename()));
+    }
+
+    private <T> void apply(FlowControlledStream<T> stream, Predicate<T> wanted) {
+        StreamStats stats = STATS.get();
+        if (!enabled || stats == null) return;
+        String encoding = negotiate(stats.acceptedEncodings);
+        if (encoding == null) return;
+        stats.encoding = encoding;
+        stream.enableCompression(encoding, message -> {
+            stats.messages.incrementAndGet();
+            if (!wanted.test(message) || cpuBusy()) return false;
+            stats.compressedMessages.incrementAndGet();
+            return true;
+        }, stats.cpuNanos::addAndGet);
+    }
+
+    private String negotiate(Set<String> accepted) {
+        for (Codec codec : codecs) {
+            if (accepted.contains(codec.getMessageEncoding())) {
+                return codec.getMessageEncoding();
+            }
+        }
+        return null;
+    }
+
+    private boolean isCompressible(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && compressibleExtensions.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Recognises common compressed formats and VTK XML files whose data arrays are already compressed
+    private static boolean isCompressed(ByteString content) {
+        if (content.size() >= 4) {
+            int b0 = content.byteAt(0) & 0xFF, b1 = content.byteAt(1) & 0xFF;
+            int b2 = content.byteAt(2) & 0xFF, b3 = content.byteAt(3) & 0xFF;
+            if (b0 == 0x1F && b1 == 0x8B) return true;                             // gzip
+            if (b0 == 0x28 && b1 == 0xB5 && b2 == 0x2F && b3 == 0xFD) return true; // zstd
+            if (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4) return true;         // zip
+            if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') return true;    // png
+            if (b0 == 0xFF && b1 == 0xD8) return true;                             // jpeg
+            if (b0 == 'g' && b1 == 'l' && b2 == 'T' && b3 == 'F') return true;     // binary glTF
+        }
+        String head = content.substring(0, Math.min(SNIFF_SIZE, content.size())).toString(StandardCharsets.ISO_8859_1);
+        return head.contains("<VTKFile") && head.contains("compressor=");
+    }
+
+    private boolean cpuBusy() {
+        long now = System.currentTimeMillis();
+        if (now - cpuSampledAt >= CPU_SAMPLE_INTERVAL_MS) {
+            cpuLoad = sampleCpuLoad();
+            cpuSampledAt = now;
+        }
+        return cpuLoad > maxCpuLoad;
+    }
+
+    private static double sampleCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+            if (load >= 0) return load;
+        }
+        double average = os.getSystemLoadAverage();
+        return average < 0 ? 0 : average / os.getAvailableProcessors();
+    }
+
+    /** Compression figures of one server stream. */
+    static final class StreamStats {
+        final String method;
+        final Set<String> acceptedEncodings;
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong compressedMessages = new AtomicLong();
+        final AtomicLong uncompressedBytes = new AtomicLong();
+        final AtomicLong wireBytes = new AtomicLong();
+        final AtomicLong cpuNanos = new AtomicLong();
+        volatile String encoding = "identity";
+
+        StreamStats(String method, Set<String> acceptedEncodings) {
+            this.method = method;
+            this.acceptedEncodings = acceptedEncodings;
+        }
+
+        /** Uncompressed / wire bytes; 1.0 if nothing was sent yet. */
+        double getRatio() {
+            long wire = wireBytes.get();
+            return wire == 0 ? 1.0 : (double) uncompressedBytes.get() / wire;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s [%s]: %d/%d messages compressed, %d -> %d bytes (%.1fx), %.1f ms CPU",
+                    method, encoding, compressedMessages.get(), messages.get(),
+                    uncompressedBytes.get(), wireBytes.get(), getRatio(), cpuNanos.get() / 1e6);
+        }
+    }
+
+    private final class TracerFactory extends ServerStreamTracer.Factory {
+        @Override
+        public ServerStreamTracer newServerStreamTracer(String fullMethodName, Metadata headers) {
+            Set<String> accepted = new HashSet<>();
+            Iterable<String> values = headers.getAll(ACCEPT_ENCODING);
+            if (values != null) {
+                for (String value : values) {
+                    for (String encoding : value.split(",")) {
+                        accepted.add(encoding.trim());
+                    }
+                }
+            }
+            StreamStats stats = new StreamStats(fullMethodName, accepted);
+            activeStreams.add(stats);
+            return new ServerStreamTracer() {
+                @Override
+                public Context filterContext(Context context) {
+                    return context.withValue(STATS, stats);
+                }
+
+                @Override
+                public void outboundUncompressedSize(long bytes) {
+                    stats.uncompressedBytes.addAndGet(bytes);
+                }
+
+                @Override
+                public void outboundWireSize(long bytes) {
+                    stats.wireBytes.addAndGet(bytes);
+                }
+
+                @Override
+                public void streamClosed(Status status) {
+                    activeStreams.remove(stats);
+                    totalUncompressedBytes.addAndGet(stats.uncompressedBytes.get());
+                    totalWireBytes.addAndGet(stats.wireBytes.get());
+                    totalCpuNanos.addAndGet(stats.cpuNanos.get());
+                    if (stats.compressedMessages.get() > 0) {
+                        logger.info("Stream {}", stats);
+                    }
+                }
+            };
+        }
+    }
+}
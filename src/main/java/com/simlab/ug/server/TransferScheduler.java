@@ -0,0 +1,294 @@
+package com.simlab.ug.server;
+
+import com.google.protobuf.MessageLite;
+import com.simlab.ug.grpc.TransferClass;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Shares the server's uplink between file streams.
+ *
+ * <p>Every message of a scheduled stream asks for its size in bytes before it is queued.
+ * Requests are granted in weighted fair queuing order (start-time fair queuing over message
+ * sizes): each stream is a flow whose weight comes from its {@link TransferClass}, so while
+ * streams compete an interactive one gets {@link #DEFAULT_INTERACTIVE_WEIGHT} times the share of
+ * a bulk one, and a bulk stream still gets the whole link when nothing else wants it.
+ *
+ * <p>A grant also takes tokens from a global and a per-client token bucket. Both are
+ * unlimited by default, in which case requests are granted immediately and only accounted for;
+ * with a global rate set to the real uplink capacity the fair queuing decides who sends first.
+ * A client over its own budget waits without holding up other clients. Clients are told apart
+ * by their remote address, which {@link #install} records for every call.
+ */
+final class TransferScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(TransferScheduler.class);
+
+    // Remote host of the call, set by the interceptor
+    static final Context.Key<String> CLIENT = Context.key("simlab-transfer-client");
+
+    static final int DEFAULT_INTERACTIVE_WEIGHT = 16;
+    static final int DEFAULT_BULK_WEIGHT = 1;
+
+    // Longest a waiting sender sleeps before re-checking the buckets
+    private static final long MAX_WAIT_MS = 100;
+
+    private final Map<TransferClass, Integer> weights = new EnumMap<>(TransferClass.class);
+    private final TokenBucket global = new TokenBucket();
+    private final Map<String, TokenBucket> clientBuckets = new HashMap<>();
+    private final TreeSet<Request> waiting = new TreeSet<>(
+            Comparator.comparingDouble((Request r) -> r.startTag).thenComparingLong(r -> r.sequence));
+    private final Set<Flow> activeFlows = ConcurrentHashMap.newKeySet();
+
+    // Guarded by this
+    private long clientRate;
+    private double virtualTime;
+    private long sequence;
+
+    TransferScheduler() {
+        weights.put(TransferClass.INTERACTIVE, DEFAULT_INTERACTIVE_WEIGHT);
+        weights.put(TransferClass.BULK, DEFAULT_BULK_WEIGHT);
+    }
+
+    /** Records each call's client address, which the per-client budgets are keyed by. */
+    void install(ServerBuilder<?> builder) {
+        builder.intercept(new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                    Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                Context context = Context.current().withValue(CLIENT, clientOf(call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR)));
+                return Contexts.interceptCall(context, call, headers, next);
+            }
+        });
+    }
+
+    // Bytes per second for all scheduled streams together; 0 for no limit
+    synchronized void setGlobalRate(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+        notifyAll();
+    }
+
+    // Bytes per second per client address; 0 for no limit
+    synchronized void setClientRate(long bytesPerSecond) {
+        this.clientRate = bytesPerSecond;
+        clientBuckets.values().forEach(bucket -> bucket.setRate(bytesPerSecond));
+        notifyAll();
+    }
+
+    /**
+     * Schedules every message of {@code stream} as a flow of {@code transferClass} for the
+     * client of the current call. Must be called before the first message.
+     */
+    <T extends MessageLite> void apply(FlowControlledStream<T> stream, TransferClass transferClass) {
+        String client = CLIENT.get();
+        Flow flow = new Flow(client != null ? client : "unknown", transferClass);
+        activeFlows.add(flow);
+        // The server cancels the call's context once the call is over, however it ended
+        Context.current().addListener(context -> {
+            activeFlows.remove(flow);
+            logger.debug("Transfer finished: {}", flow);
+        }, Runnable::run);
+        stream.schedule(message -> flow.acquire(message.getSerializedSize(), stream::isClosed));
+    }
+
+    /** {@code requested}, or {@code fallback} if the client did not ask for a known class. */
+    static TransferClass classOrDefault(TransferClass requested, TransferClass fallback) {
+        return requested == TransferClass.INTERACTIVE || requested == TransferClass.BULK ? requested : fallback;
+    }
+
+    /** Flows of the calls that are currently open. */
+    List<Flow> getActiveFlows() {
+        return new ArrayList<>(activeFlows);
+    }
+
+    private static String clientOf(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) address;
+            return inet.getAddress() != null ? inet.getAddress().getHostAddress() : inet.getHostString();
+        }
+        return address != null ? address.toString() : "unknown";
+    }
+
+    /** One scheduled stream. */
+    final class Flow {
+        final String client;
+        final TransferClass transferClass;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        // Guarded by the scheduler
+        private double finishTag;
+
+        private Flow(String client, TransferClass transferClass) {
+            this.client = client;
+            this.transferClass = transferClass;
+        }
+
+        /**
+         * Blocks until {@code size} bytes may be sent.
+         *
+         * @return false if the stream closed or the thread was interrupted while waiting
+         */
+        boolean acquire(int size, BooleanSupplier closed) {
+            long start = System.nanoTime();
+            try {
+                return TransferScheduler.this.acquire(this, size, closed);
+            } finally {
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %s: %.1f MB, waited %d ms", client, transferClass,
+                    bytes.get() / 1e6, TimeUnit.NANOSECONDS.toMillis(waitNanos.get()));
+        }
+    }
+
+    private static final class Request {
+        final Flow flow;
+        final int size;
+        final long sequence;
+        final double startTag;
+        boolean granted;
+
+        Request(Flow flow, int size, long sequence, double startTag) {
+            this.flow = flow;
+            this.size = size;
+            this.sequence = sequence;
+            this.startTag = startTag;
+        }
+    }
+
+    private synchronized boolean acquire(Flow flow, int size, BooleanSupplier closed) {
+        // Start-time fair queuing: a flow that was idle starts at the current virtual time
+        double startTag = Math.max(virtualTime, flow.finishTag);
+        flow.finishTag = startTag + (double) size / weights.getOrDefault(flow.transferClass, DEFAULT_BULK_WEIGHT);
+        Request request = new Request(flow, size, sequence++, startTag);
+        waiting.add(request);
+        try {
+            while (true) {
+                long retryNanos = grantLocked();
+                if (request.granted) {
+                    return true;
+                }
+                if (closed.getAsBoolean()) {
+                    return false;
+                }
+                wait(Math.max(1, Math.min(MAX_WAIT_MS, TimeUnit.NANOSECONDS.toMillis(retryNanos))));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (!request.granted) {
+                waiting.remove(request);
+                notifyAll();
+            }
+        }
+    }
+
+    // Grants waiting requests in tag order while the buckets allow; returns nanos until a refill may help
+    private long grantLocked() {
+        long now = System.nanoTime();
+        long retryNanos = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS);
+        boolean grantedAny = false;
+        for (Iterator<Request> it = waiting.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (!global.available(now)) {
+                retryNanos = Math.min(retryNanos, global.nanosUntilAvailable(now));
+                break;
+            }
+            TokenBucket client = clientBuckets.computeIfAbsent(request.flow.client, c -> {
+                TokenBucket bucket = new TokenBucket();
+                bucket.setRate(clientRate);
+                return bucket;
+            });
+            if (!client.available(now)) {
+                // Over its own budget; later requests of other clients may still go
+                retryNanos = Math.min(retryNanos, client.nanosUntilAvailable(now));
+                continue;
+            }
+            global.take(request.size);
+            client.take(request.size);
+            virtualTime = Math.max(virtualTime, request.startTag);
+            request.flow.bytes.addAndGet(request.size);
+            request.granted = true;
+            it.remove();
+            grantedAny = true;
+        }
+        if (grantedAny) {
+            notifyAll();
+        }
+        if (waiting.isEmpty()) {
+            // Nobody competes; budgets of idle clients are no longer needed
+            clientBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+        return retryNanos;
+    }
+
+    /**
+     * Bytes per second with a burst of one second. Tokens may go negative: a message larger
+     * than the remaining tokens is let through and the debt delays the next one.
+     */
+    private static final class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        void setRate(long bytesPerSecond) {
+            this.rate = Math.max(0, bytesPerSecond);
+            this.tokens = Math.min(tokens, rate);
+        }
+
+        boolean available(long now) {
+            if (rate == 0) return true;
+            refill(now);
+            return tokens > 0;
+        }
+
+        void take(int size) {
+            if (rate > 0) tokens -= size;
+        }
+
+        long nanosUntilAvailable(long now) {
+            if (rate == 0) return 0;
+            refill(now);
+            return tokens > 0 ? 0 : (long) Math.ceil((1 - tokens) * 1e9 / rate);
+        }
+
+        boolean isFull(long now) {
+            if (rate == 0) return true;
+            refill(now);
+            return tokens >= rate;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(rate, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Rewrites ASCII VTU files as appended, raw-binary, zlib-compressed VTU, the layout VTK itself
+ * writes by default. The result is typically 5-10x smaller and loads much faster in vtu2gltf.
+ *
+ * <p>The source is parsed with StAX and each {@code DataArray} is converted while it is read:
+ * values go into 32 KB blocks that are compressed immediately, so memory use does not depend on
+ * the file size. Files that are not pure ASCII {@code UnstructuredGrid}s are left alone.
+ *
+ * <p>Transcoded copies are cached by path, size and modification time, so several subscribers
+ * of the same simulation share one conversion. The cache is capped in bytes and evicts the least
+ * recently used copies; a copy that is evicted or outdated is deleted once its last reader has
+ * closed its {@link Copy}.
+ */
+final class VtuTranscoder {
+    private static final Logger logger = LoggerFactory.getLogger(VtuTranscoder.class);
+
+    // Uncompressed block size; VTK's default, and a multiple of every value size
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final XMLInputFactory INPUT = XMLInputFactory.newFactory();
+    private static final XMLOutputFactory OUTPUT = XMLOutputFactory.newFactory();
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newFactory();
+
+    static {
+        INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final Path cacheDirectory;
+    private final long maxBytes;
+    // Access ordered, so iteration starts at the least recently used copy; guarded by this
+    private final Map<Path, CachedCopy> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    VtuTranscoder() throws IOException {
+        this(Files.createTempDirectory("ug-transcoded-"), DEFAULT_MAX_BYTES);
+    }
+
+    VtuTranscoder(Path cacheDirectory, long maxBytes) {
+        this.cacheDirectory = cacheDirectory;
+        this.maxBytes = maxBytes;
+    }
+
+    private static final class CachedCopy {
+        final long size;
+        final long lastModified;
+        final CompletableFuture<Path> result = new CompletableFuture<>();
+        // Guarded by the transcoder
+        int readers = 0;
+        boolean evicted = false;
+        long bytes = 0;
+
+        CachedCopy(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /** A file to send in place of the source; close it once the file has been read. */
+    final class Copy implements AutoCloseable {
+        final Path path;
+        private final CachedCopy entry;
+        private boolean closed = false;
+
+        private Copy(Path path, CachedCopy entry) {
+            this.path = path;
+            this.entry = entry;
+        }
+
+        @Override
+        public void close() {
+            if (entry == null || closed) return;
+            closed = true;
+            release(entry);
+        }
+    }
+
+    /**
+     * Returns the transcoded copy of {@code source}, converting it first if needed. The copy is
+     * {@code source} itself if it is not an ASCII VTU file or cannot be converted.
+     */
+    Copy transcoded(Path source) {
+        if (!source.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".vtu")) {
+            return new Copy(source, null);
+        }
+        long size;
+        long lastModified;
+        try {
+            size = Files.size(source);
+            lastModified = Files.getLastModifiedTime(source).toMillis();
+        } catch (IOException e) {
+            return new Copy(source, null);
+        }
+
+        Path key = source.toAbsolutePath();
+        CachedCopy entry;
+        boolean convert = false;
+        synchronized (this) {
+            entry = cache.get(key);
+            if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+                if (entry != null) {
+                    // Copy of an older version of the file
+                    evictLocked(key, entry);
+                }
+                entry = new CachedCopy(size, lastModified);
+                cache.put(key, entry);
+                convert = true;
+            }
+            entry.readers++;
+        }
+        if (!convert) {
+            return new Copy(entry.result.join(), entry);
+        }
+
+        Path result = source;
+        Path target = null;
+        try {
+            target = Files.createTempFile(cacheDirectory, "transcoded-", ".vtu");
+            if (transcode(source, target)) {
+                result = target;
+                logger.info("Transcoded {} to binary VTU: {} -> {} bytes", source.getFileName(), size, Files.size(target));
+            } else {
+                deleteQuietly(target);
+            }
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+            logger.warn("Failed to transcode {}, sending it unchanged", source, e);
+            if (target != null) deleteQuietly(target);
+        } finally {
+            entry.result.complete(result);
+        }
+
+        if (result != source) {
+            synchronized (this) {
+                if (!entry.evicted) {
+                    try {
+                        entry.bytes = Files.size(result);
+                    } catch (IOException e) {
+                        entry.bytes = size;
+                    }
+                    cachedBytes += entry.bytes;
+                    trimLocked();
+                }
+            }
+        }
+        return new Copy(result, entry);
+    }
+
+    // Evicts least recently used copies until the cache fits; the newest copy is always kept
+    private void trimLocked() {
+        Iterator<Map.Entry<Path, CachedCopy>> it = cache.entrySet().iterator();
+        while (cachedBytes > maxBytes && cache.size() > 1 && it.hasNext()) {
+            Map.Entry<Path, CachedCopy> next = it.next();
+            CachedCopy entry = next.getValue();
+            if (!entry.result.isDone()) continue;
+            it.remove();
+            dropLocked(entry);
+        }
+    }
+
+    private void evictLocked(Path key, CachedCopy entry) {
+        cache.remove(key);
+        dropLocked(entry);
+    }
+
+    private void dropLocked(CachedCopy entry) {
+        entry.evicted = true;
+        cachedBytes -= entry.bytes;
+        if (entry.readers == 0) {
+            deleteCopy(entry);
+        }
+    }
+
+    private synchronized void release(CachedCopy entry) {
+        entry.readers--;
+        if (entry.evicted && entry.readers == 0) {
+            deleteCopy(entry);
+        }
+    }
+
+    // Deletes the converted file once it is complete; never the source it stands in for
+    private void deleteCopy(CachedCopy entry) {
+        entry.result.thenAccept(copy -> {
+            if (copy.startsWith(cacheDirectory)) deleteQuietly(copy);
+        });
+    }
+
+    /** Deletes all transcoded copies. */
+    synchronized void close() {
+        cache.clear();
+        cachedBytes = 0;
+        try (Stream<Path> files = Files.walk(cacheDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(VtuTranscoder::deleteQuietly);
+        } catch (IOException e) {
+            logger.warn("Failed to clean up {}", cacheDirectory, e);
+        }
+    }
+
+    /**
+     * Writes the binary form of {@code source} to {@code target}.
+     *
+     * @return false if {@code source} is not an ASCII UnstructuredGrid; {@code target} is then incomplete
+     */
+    static boolean transcode(Path source, Path target) throws IOException, XMLStreamException {
+        Path blockFile = Files.createTempFile(target.toAbsolutePath().getParent(), "blocks-", ".tmp");
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(target));
+             FileChannel blocks = FileChannel.open(blockFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            XMLEventReader reader = INPUT.createXMLEventReader(in);
+            XMLEventWriter writer = OUTPUT.createXMLEventWriter(out, "UTF-8");
+            List<EncodedArray> arrays = new ArrayList<>();
+            ArrayEncoder current = null;
+            long appendedOffset = 0;
+
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    String name = start.getName().getLocalPart();
+                    if (current != null || name.equals("AppendedData")) {
+                        return false;
+                    }
+                    if (name.equals("VTKFile")) {
+                        if (!"UnstructuredGrid".equals(attribute(start, "type")) || attribute(start, "compressor") != null) {
+                            return false;
+                        }
+                        Map<String, String> changes = new LinkedHashMap<>();
+                        changes.put("byte_order", "LittleEndian");
+                        changes.put("header_type", "UInt64");
+                        changes.put("compressor", "vtkZLibDataCompressor");
+                        event = withAttributes(start, changes);
+                    } else if (name.equals("DataArray")) {
+                        ValueType type = ValueType.of(attribute(start, "type"));
+                        if (!"ascii".equals(attribute(start, "format")) || type == null) {
+                            return false;
+                        }
+                        Map<String, String> changes = new LinkedHashMap<>();
+                        changes.put("format", "appended");
+                        changes.put("offset", Long.toString(appendedOffset));
+                        event = withAttributes(start, changes);
+                        current = new ArrayEncoder(type, blocks);
+                    }
+                } else if (event.isCharacters() && current != null) {
+                    current.accept(event.asCharacters().getData());
+                    continue;
+                } else if (event.isEndElement()) {
+                    String name = event.asEndElement().getName().getLocalPart();
+                    if (name.equals("DataArray") && current != null) {
+                        EncodedArray array = current.finish();
+                        arrays.add(array);
+                        appendedOffset += array.encodedSize();
+                        current = null;
+                    } else if (name.equals("VTKFile")) {
+                        writer.flush();
+                        writeAppendedData(out, arrays, blocks);
+                        return true;
+                    }
+                }
+                writer.add(event);
+            }
+            return false;
+        } finally {
+            Files.deleteIfExists(blockFile);
+        }
+    }
+
+    private static void writeAppendedData(OutputStream out, List<EncodedArray> arrays, FileChannel blocks) throws IOException {
+        out.write("<AppendedData encoding=\"raw\">\n_".getBytes(StandardCharsets.US_ASCII));
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (EncodedArray array : arrays) {
+            ByteBuffer header = ByteBuffer.allocate(array.header.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (long value : array.header) {
+                header.putLong(value);
+            }
+            out.write(header.array());
+            long position = array.blockStart;
+            long end = array.blockStart + array.blockLength;
+            while (position < end) {
+                position += blocks.transferTo(position, end - position, channel);
+            }
+        }
+        out.write("\n</AppendedData>\n</VTKFile>\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String attribute(StartElement element, String name) {
+        Attribute attribute = element.getAttributeByName(new javax.xml.namespace.QName(name));
+        return attribute == null ? null : attribute.getValue();
+    }
+
+    private static StartElement withAttributes(StartElement element, Map<String, String> changes) {
+        Map<String, String> remaining = new LinkedHashMap<>(changes);
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<Attribute> it = element.getAttributes(); it.hasNext(); ) {
+            Attribute attribute = it.next();
+            String name = attribute.getName().getLocalPart();
+            String replacement = remaining.remove(name);
+            attributes.add(replacement == null ? attribute : EVENTS.createAttribute(name, replacement));
+        }
+        remaining.forEach((name, value) -> attributes.add(EVENTS.createAttribute(name, value)));
+        return EVENTS.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.debug("Could not delete {}", path, e);
+        }
+    }
+
+    /** One compressed array: its VTK compression header and where its blocks are in the block file. */
+    private static final class EncodedArray {
+        final long[] header;
+        final long blockStart;
+        final long blockLength;
+
+        EncodedArray(long[] header, long blockStart, long blockLength) {
+            this.header = header;
+            this.blockStart = blockStart;
+            this.blockLength = blockLength;
+        }
+
+        long encodedSize() {
+            return (long) header.length * Long.BYTES + blockLength;
+        }
+    }
+
+    /** Parses ASCII values of one DataArray and writes them as compressed binary blocks. */
+    private static final class ArrayEncoder {
+        private final ValueType type;
+        private final FileChannel blocks;
+        private final long blockStart;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final byte[] compressed = new byte[BLOCK_SIZE + 1024];
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final List<Long> blockSizes = new ArrayList<>();
+        // Token cut off at the end of the previous character event
+        private final StringBuilder partial = new StringBuilder();
+        private long totalBytes = 0;
+
+        ArrayEncoder(ValueType type, FileChannel blocks) throws IOException {
+            this.type = type;
+            this.blocks = blocks;
+            this.blockStart = blocks.position();
+        }
+
+        void accept(String text) throws IOException {
+            int i = 0;
+            int n = text.length();
+            while (i < n) {
+                while (i < n && Character.isWhitespace(text.charAt(i))) {
+                    if (partial.length() > 0) {
+                        value(partial.toString());
+                        partial.setLength(0);
+                    }
+                    i++;
+                }
+                int start = i;
+                while (i < n && !Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+                if (i == start) continue;
+                if (i == n) {
+                    partial.append(text, start, i);
+                } else if (partial.length() > 0) {
+                    partial.append(text, start, i);
+                    value(partial.toString());
+                    partial.setLength(0);
+                } else {
+                    value(text.substring(start, i));
+                }
+            }
+        }
+
+        EncodedArray finish() throws IOException {
+            try {
+                if (partial.length() > 0) {
+                    value(partial.toString());
+                    partial.setLength(0);
+                }
+                if (block.position() > 0) {
+                    flushBlock();
+                }
+                long[] header = new long[3 + blockSizes.size()];
+                header[0] = blockSizes.size();
+                header[1] = BLOCK_SIZE;
+                header[2] = totalBytes % BLOCK_SIZE;
+                long length = 0;
+                for (int i = 0; i < blockSizes.size(); i++) {
+                    header[3 + i] = blockSizes.get(i);
+                    length += blockSizes.get(i);
+                }
+                return new EncodedArray(header, blockStart, length);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void value(String token) throws IOException {
+            if (block.remaining() < type.size) {
+                flushBlock();
+            }
+            type.put(block, token);
+            totalBytes += type.size;
+        }
+
+        private void flushBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block.array(), 0, block.position());
+            deflater.finish();
+            long size = 0;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressed);
+                ByteBuffer chunk = ByteBuffer.wrap(compressed, 0, n);
+                while (chunk.hasRemaining()) {
+                    blocks.write(chunk);
+                }
+                size += n;
+            }
+            blockSizes.add(size);
+            block.clear();
+        }
+    }
+
+    private enum ValueType {
+        INT8(1), UINT8(1), INT16(2), UINT16(2), INT32(4), UINT32(4), INT64(8), UINT64(8), FLOAT32(4), FLOAT64(8);
+
+        final int size;
+
+        ValueType(int size) {
+            this.size = size;
+        }
+
+        static ValueType of(String vtkName) {
+            if (vtkName == null) return null;
+            try {
+                return valueOf(vtkName.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        void put(ByteBuffer buffer, String token) {
+            switch (this) {
+                case INT8, UINT8 -> buffer.put((byte) Long.parseLong(token));
+                case INT16, UINT16 -> buffer.putShort((short) Long.parseLong(token));
+                case INT32, UINT32 -> buffer.putInt((int) Long.parseLong(token));
+                case INT64 -> buffer.putLong(Long.parseLong(token));
+                case UINT64 -> buffer.putLong(Long.parseUnsignedLong(token));
+                case FLOAT32 -> buffer.putFloat((float) parseDouble(token));
+                case FLOAT64 -> buffer.putDouble(parseDouble(token));
+            }
+        }
+
+        // C++ streams write non-finite values as nan/inf, which Double.parseDouble rejects
+        private static double parseDouble(String token) {
+            try {
+                return Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                String lower = token.toLowerCase(Locale.ROOT);
+                if (lower.contains("nan")) return Double.NaN;
+                if (lower.startsWith("-inf")) return Double.NEGATIVE_INFINITY;
+                if (lower.startsWith("inf") || lower.startsWith("+inf")) return Double.POSITIVE_INFINITY;
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.simlab.ug.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.stream.Stream;
+
+/**
+ * Reports changes from the platform's {@link WatchService} (inotify on Linux), registering
+ * every directory of the tree, including ones created later. Files already in a directory
+ * when it is registered late are reported as changed, since they raise no event.
+ *
+ * <p>Reliable for writes made through the local kernel only: on NFS or Lustre, writes from
+ * other hosts raise no events. If a new subdirectory cannot be registered, typically because
+ * {@code fs.inotify.max_user_watches} is exhausted, the detector reports {@link Sink#failed}
+ * and stops instead of silently missing the subtree.
+ */
+final class WatchServiceDetector implements ChangeDetector {
+    private static final Logger logger = LoggerFactory.getLogger(WatchServiceDetector.class);
+
+    private final Path root;
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean running = true;
+
+    WatchServiceDetector(Path root) {
+        this.root = root;
+    }
+
+    @Override
+    public void start(Sink sink) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            registerTree(root);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        thread = new Thread(() -> run(sink), "DirectoryWatcher-" + root.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Error closing watch service for {}", root, e);
+        }
+        thread.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return "WatchService";
+    }
+
+    private void registerTree(Path dir) throws IOException {
+        try (Stream<Path> dirs = Files.walk(dir)) {
+            for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+    }
+
+    private void run(Sink sink) {
+        try {
+            while (running) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (!running) break;
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        sink.overflowed();
+                        continue;
+                    }
+                    if (!(event.context() instanceof Path)) continue;
+                    Path child = dir.resolve((Path) event.context());
+                    if (Files.isDirectory(child)) {
+                        try {
+                            registerTree(child);
+                            logger.info("Registered new subdirectory {}", child);
+                        } catch (IOException e) {
+                            sink.failed("cannot watch new subdirectory " + child + ": " + e.getMessage());
+                            return;
+                        }
+                        // Files written before the watch was registered raise no event of their own
+                        for (DirectoryScanner.Entry entry : DirectoryScanner.scan(child, path -> true)) {
+                            sink.changed(entry.path);
+                        }
+                    } else if (Files.isRegularFile(child)) {
+                        sink.changed(child);
+                    }
+                }
+                if (!key.reset() && dir.equals(root)) {
+                    logger.warn("Watched directory {} is no longer accessible", root);
+                    break;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.simlab.ug.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaSyncTest {
+
+    private static final int BLOCK = DeltaSync.MIN_BLOCK_SIZE;
+    private static final int MAX_LITERAL = 64 * 1024;
+    // Larger than a literal run plus a read, so the window buffer is shifted and refilled
+    private static final int LARGE = 300 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void emptyBasisSendsEverythingAsLiterals() throws IOException {
+        byte[] source = random(1, 5000);
+        Result result = roundTrip(new byte[0], source);
+        assertEquals(0, result.copies);
+        assertEquals(source.length, result.literalBytes);
+    }
+
+    @Test
+    void emptySourceRebuildsEmptyFile() throws IOException {
+        Result result = roundTrip(random(2, 4 * BLOCK), new byte[0]);
+        assertEquals(0, result.copies);
+        assertEquals(0, result.literalBytes);
+    }
+
+    @Test
+    void unchangedFileIsCopiedBlockByBlock() throws IOException {
+        byte[] basis = random(3, 20 * BLOCK + 100);
+        Result result = roundTrip(basis, basis);
+        assertEquals(20, result.copies);
+        // Only the trailing partial block, which has no signature, travels as a literal
+        assertEquals(100, result.literalBytes);
+    }
+
+    @Test
+    void filesSmallerThanOneBlock() throws IOException {
+        Result result = roundTrip(random(4, BLOCK - 1), random(5, BLOCK / 2));
+        assertEquals(0, result.copies);
+        roundTrip(random(6, 10), random(7, BLOCK + 10));
+    }
+
+    @Test
+    void insertInTheMiddle() throws IOException {
+        byte[] basis = random(8, 40 * BLOCK);
+        byte[] source = concat(Arrays.copyOfRange(basis, 0, 17 * BLOCK + 3), random(9, 777),
+                Arrays.copyOfRange(basis, 17 * BLOCK + 3, basis.length));
+        Result result = roundTrip(basis, source);
+        // Only the block the insert falls into is lost
+        assertEquals(39, result.copies);
+        assertTrue(result.literalBytes < 777 + 2 * BLOCK);
+    }
+
+    @Test
+    void deleteInTheMiddle() throws IOException {
+        byte[] basis = random(10, 40 * BLOCK);
+        byte[] source = concat(Arrays.copyOfRange(basis, 0, 10 * BLOCK + 5),
+                Arrays.copyOfRange(basis, 12 * BLOCK + 9, basis.length));
+        Result result = roundTrip(basis, source);
+        assertTrue(result.copies >= 36);
+        assertTrue(result.literalBytes < 2 * BLOCK);
+    }
+
+    @Test
+    void append() throws IOException {
+        byte[] basis = random(11, 30 * BLOCK);
+        byte[] source = concat(basis, random(12, 1234));
+        Result result = roundTrip(basis, source);
+        assertEquals(30, result.copies);
+        assertEquals(1234, result.literalBytes);
+    }
+
+    @Test
+    void largeFileWithoutMatches() throws IOException {
+        byte[] source = random(13, LARGE);
+        Result result = roundTrip(random(14, 8 * BLOCK), source);
+        assertEquals(0, result.copies);
+        assertEquals(source.length, result.literalBytes);
+    }
+
+    @Test
+    void largeFileWithChangesSpreadOut() throws IOException {
+        byte[] basis = random(15, LARGE);
+        byte[] source = basis.clone();
+        Random random = new Random(16);
+        for (int i = 0; i < 10; i++) {
+            source[random.nextInt(source.length)] ^= 0x5A;
+        }
+        source = concat(random(17, 3), source, random(18, 70 * 1024));
+        Result result = roundTrip(basis, source);
+        assertTrue(result.copies >= basis.length / BLOCK - 10);
+    }
+
+    @Test
+    void largeFileWithLongLiteralRunBetweenMatches() throws IOException {
+        byte[] basis = random(19, 10 * BLOCK);
+        // A literal run longer than one flush between copied blocks
+        byte[] source = concat(Arrays.copyOfRange(basis, 0, 5 * BLOCK), random(20, LARGE),
+                Arrays.copyOfRange(basis, 5 * BLOCK, basis.length));
+        Result result = roundTrip(basis, source);
+        assertEquals(10, result.copies);
+        assertEquals(LARGE, result.literalBytes);
+    }
+
+    @Test
+    void weakChecksumCollisionIsNotCopied() throws IOException {
+        byte[] basis = random(21, BLOCK);
+        // +1, -2, +1 on three neighbours keeps both rolling sums
+        byte[] source = basis.clone();
+        int at = BLOCK / 2;
+        basis[at] = 10;
+        basis[at + 1] = 10;
+        basis[at + 2] = 10;
+        source[at] = 11;
+        source[at + 1] = 8;
+        source[at + 2] = 11;
+        assertEquals(DeltaSync.weakChecksum(basis, 0, BLOCK), DeltaSync.weakChecksum(source, 0, BLOCK));
+        assertFalse(Arrays.equals(basis, source));
+
+        Result result = roundTrip(basis, source);
+        assertEquals(0, result.copies);
+        assertEquals(BLOCK, result.literalBytes);
+    }
+
+    @Test
+    void rollingChecksumMatchesFreshChecksum() {
+        byte[] data = random(22, 3 * BLOCK);
+        int weak = DeltaSync.weakChecksum(data, 0, BLOCK);
+        for (int pos = 0; pos + BLOCK < data.length; pos++) {
+            weak = DeltaSync.rollChecksum(weak, data[pos], data[pos + BLOCK], BLOCK);
+            assertEquals(DeltaSync.weakChecksum(data, pos + 1, BLOCK), weak, "at offset " + (pos + 1));
+        }
+    }
+
+    @Test
+    void mismatchedSizeIsRejected() throws IOException {
+        Path basis = write("basis", random(23, 2 * BLOCK));
+        Path target = dir.resolve("target");
+        try (DeltaSync.Patcher patcher = new DeltaSync.Patcher(basis, BLOCK, target)) {
+            patcher.copyBlock(0);
+            assertThrows(IOException.class, () -> patcher.finish(3 * BLOCK));
+        }
+        assertFalse(Files.exists(target));
+    }
+
+    private static final class Result {
+        int copies;
+        long literalBytes;
+    }
+
+    private Result roundTrip(byte[] basisBytes, byte[] sourceBytes) throws IOException {
+        Path basis = write("basis", basisBytes);
+        Path source = write("source", sourceBytes);
+        Path target = dir.resolve("target");
+        List<DeltaSync.BlockSignature> signatures = DeltaSync.signatures(basis, BLOCK);
+        assertEquals(basisBytes.length / BLOCK, signatures.size());
+
+        Result result = new Result();
+        try (DeltaSync.Patcher patcher = new DeltaSync.Patcher(basis, BLOCK, target)) {
+            DeltaSync.delta(source, BLOCK, signatures, new DeltaSync.DeltaSink() {
+                @Override
+                public void copyBlock(int blockIndex) throws IOException {
+                    result.copies++;
+                    patcher.copyBlock(blockIndex);
+                }
+
+                @Override
+                public void literal(byte[] data, int offset, int length) throws IOException {
+                    assertTrue(length > 0 && length <= MAX_LITERAL, "literal of " + length + " bytes");
+                    result.literalBytes += length;
+                    patcher.literal(ByteBuffer.wrap(data, offset, length));
+                }
+            });
+            patcher.finish(sourceBytes.length);
+        }
+        assertArrayEquals(sourceBytes, Files.readAllBytes(target));
+        return result;
+    }
+
+    private Path write(String name, byte[] content) throws IOException {
+        return Files.write(dir.resolve(name), content);
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] result = new byte[length];
+        int at = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, at, part.length);
+            at += part.length;
+        }
+        return result;
+    }
+}
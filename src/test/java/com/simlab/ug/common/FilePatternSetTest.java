@@ -0,0 +1,116 @@
+package com.simlab.ug.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FilePatternSetTest {
+
+    @Test
+    void emptySetMatchesEverything() {
+        assertTrue(FilePatternSet.of(List.of()).matchesAll());
+        assertTrue(FilePatternSet.of((List<String>) null).matches("anything.bin"));
+        assertTrue(FilePatternSet.of(" ", "").matchesAll());
+        assertFalse(FilePatternSet.of("*.vtu").matchesAll());
+    }
+
+    @Test
+    void suffix() {
+        FilePatternSet set = FilePatternSet.of("*.vtu");
+        assertTrue(set.matches("sol_0001.vtu"));
+        assertTrue(set.matches(".vtu"));
+        assertFalse(set.matches("sol_0001.vtu.bak"));
+        assertFalse(set.matches("sol_0001.pvd"));
+    }
+
+    @Test
+    void exactName() {
+        FilePatternSet set = FilePatternSet.of("result.pvd");
+        assertTrue(set.matches("result.pvd"));
+        assertFalse(set.matches("result.pvd2"));
+        assertFalse(set.matches("my_result.pvd"));
+    }
+
+    @Test
+    void dotIsLiteral() {
+        FilePatternSet set = FilePatternSet.of("sol.vtu", "*_a.b");
+        assertTrue(set.matches("sol.vtu"));
+        assertFalse(set.matches("solxvtu"));
+        assertTrue(set.matches("x_a.b"));
+        assertFalse(set.matches("x_axb"));
+    }
+
+    @Test
+    void infixBeforeSuffix() {
+        FilePatternSet set = FilePatternSet.of("*sol_*.vtu");
+        assertTrue(set.matches("sol_1.vtu"));
+        assertTrue(set.matches("heat_sol_0042.vtu"));
+        assertTrue(set.matches("sol_.vtu"));
+        assertFalse(set.matches("heat_0042.vtu"));
+        assertFalse(set.matches("sol_1.vtk"));
+        assertFalse(set.matches("x.vtu_sol_"));
+    }
+
+    @Test
+    void prefixInfixSuffix() {
+        FilePatternSet set = FilePatternSet.of("a*b*c");
+        assertTrue(set.matches("abc"));
+        assertTrue(set.matches("a--b--c"));
+        assertTrue(set.matches("abbc"));
+        assertFalse(set.matches("acb"));
+        assertFalse(set.matches("ab"));
+        assertFalse(set.matches("xabc"));
+        assertFalse(set.matches("abcx"));
+    }
+
+    @Test
+    void overlappingPartsMustNotShareCharacters() {
+        FilePatternSet set = FilePatternSet.of("*aa*aa");
+        assertFalse(set.matches("aa"));
+        assertFalse(set.matches("aaa"));
+        assertTrue(set.matches("aaaa"));
+        assertTrue(set.matches("xaayaa"));
+
+        FilePatternSet prefixAndSuffix = FilePatternSet.of("ab*ba");
+        assertFalse(prefixAndSuffix.matches("aba"));
+        assertTrue(prefixAndSuffix.matches("abba"));
+    }
+
+    @Test
+    void starOnlyMatchesEverything() {
+        FilePatternSet set = FilePatternSet.of("*");
+        assertTrue(set.matches(""));
+        assertTrue(set.matches("any.thing"));
+    }
+
+    @Test
+    void otherWildcardsUseThePlatformGlob() {
+        FilePatternSet set = FilePatternSet.of("sol_?.vtu", "*.{pvd,pvtu}", "step[0-9].vtk");
+        assertTrue(set.matches("sol_1.vtu"));
+        assertFalse(set.matches("sol_12.vtu"));
+        assertTrue(set.matches("out.pvd"));
+        assertTrue(set.matches("out.pvtu"));
+        assertFalse(set.matches("out.vtu"));
+        assertTrue(set.matches("step7.vtk"));
+        assertFalse(set.matches("stepx.vtk"));
+    }
+
+    @Test
+    void anyPatternInTheSetMatches() {
+        FilePatternSet set = FilePatternSet.of("*.vtu", "*.pvd");
+        assertTrue(set.matches("a.vtu"));
+        assertTrue(set.matches("a.pvd"));
+        assertFalse(set.matches("a.gltf"));
+    }
+
+    @Test
+    void pathsMatchOnFileName() {
+        FilePatternSet set = FilePatternSet.of("sol_*.vtu");
+        assertTrue(set.matches(Path.of("results", "run1", "sol_3.vtu")));
+        assertFalse(set.matches(Path.of("sol_dir", "other.vtu")));
+    }
+}
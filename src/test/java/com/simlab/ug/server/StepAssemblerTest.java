@@ -0,0 +1,170 @@
+package com.simlab.ug.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StepAssemblerTest {
+
+    private static final long TIMEOUT_MS = 1_000;
+
+    @TempDir
+    Path dir;
+
+    private final Set<Path> delivered = new HashSet<>();
+    private final StepAssembler steps = new StepAssembler(delivered::contains, TIMEOUT_MS);
+
+    @Test
+    void piecesNamedWithTimeStepFirst() throws IOException {
+        Path header = header("sol_t0042.pvtu", "sol_t0042_p0000.vtu", "sol_t0042_p0001.vtu");
+        assertCompletes(header, piece("sol_t0042_p0000.vtu"), piece("sol_t0042_p0001.vtu"));
+    }
+
+    @Test
+    void piecesNamedWithRankFirst() throws IOException {
+        Path header = header("sol_t0042.pvtu", "sol_p0000_t0042.vtu", "sol_p0001_t0042.vtu");
+        assertCompletes(header, piece("sol_p0000_t0042.vtu"), piece("sol_p0001_t0042.vtu"));
+    }
+
+    @Test
+    void piecesWithoutTimeStep() throws IOException {
+        Path header = header("sol.pvtu", "sol_p0.vtu", "sol_p1.vtu");
+        assertCompletes(header, piece("sol_p0.vtu"), piece("sol_p1.vtu"));
+    }
+
+    @Test
+    void headerBeforeItsPieces() throws IOException {
+        Path a = piece("sol_t0001_p0000.vtu");
+        Path b = piece("sol_t0001_p0001.vtu");
+        Path header = header("sol_t0001.pvtu", "sol_t0001_p0000.vtu", "sol_t0001_p0001.vtu");
+
+        assertTrue(steps.accepts(header));
+        assertNull(steps.add(header, 5));
+        assertTrue(steps.accepts(a));
+        assertNull(steps.add(a, 6));
+        StepAssembler.Step step = steps.add(b, 7);
+        assertNotNull(step);
+        assertEquals(header, step.header);
+        assertEquals(List.of(a, b), step.pieces);
+        assertEquals(5, step.sequence);
+        assertTrue(steps.isEmpty());
+    }
+
+    @Test
+    void piecesNamedOnlyByTheHeader() throws IOException {
+        Path header = header("out.pvtu", "rank0.vtu", "rank1.vtu");
+        Path rank0 = piece("rank0.vtu");
+        Path rank1 = piece("rank1.vtu");
+        assertFalse(steps.accepts(rank0));
+
+        assertNull(steps.add(header, 1));
+        assertTrue(steps.accepts(rank0));
+        assertNull(steps.add(rank0, 2));
+        assertNotNull(steps.add(rank1, 3));
+    }
+
+    @Test
+    void deliveredPiecesCountAsReady() throws IOException {
+        Path a = piece("sol_t0003_p0000.vtu");
+        Path b = piece("sol_t0003_p0001.vtu");
+        Path header = header("sol_t0003.pvtu", "sol_t0003_p0000.vtu", "sol_t0003_p0001.vtu");
+        delivered.add(a);
+
+        assertNull(steps.add(b, 4));
+        StepAssembler.Step step = steps.add(header, 5);
+        assertNotNull(step);
+        assertEquals(List.of(b), step.pieces);
+        assertEquals(4, step.sequence);
+    }
+
+    @Test
+    void lateDuplicateOfDeliveredPieceIsNotHeld() throws IOException {
+        Path a = piece("sol_t0002_p0000.vtu");
+        Path b = piece("sol_t0002_p0001.vtu");
+        Path header = header("sol_t0002.pvtu", "sol_t0002_p0000.vtu", "sol_t0002_p0001.vtu");
+        assertCompletes(header, a, b);
+        delivered.add(a);
+        delivered.add(b);
+        delivered.add(header);
+
+        assertFalse(steps.accepts(a));
+        assertTrue(steps.isEmpty());
+        assertEquals(Long.MAX_VALUE, steps.millisUntilDue(System.currentTimeMillis()));
+    }
+
+    @Test
+    void pieceOfOpenStepIsHeldEvenIfDeliveredBefore() throws IOException {
+        Path a = piece("sol_t0004_p0000.vtu");
+        Path b = piece("sol_t0004_p0001.vtu");
+        header("sol_t0004.pvtu", "sol_t0004_p0000.vtu", "sol_t0004_p0001.vtu");
+        delivered.add(a);
+
+        assertNull(steps.add(b, 1));
+        assertTrue(steps.accepts(a));
+    }
+
+    @Test
+    void incompleteStepExpires() throws IOException {
+        Path a = piece("sol_t0005_p0000.vtu");
+        Path header = header("sol_t0005.pvtu", "sol_t0005_p0000.vtu", "sol_t0005_p0001.vtu");
+        long start = System.currentTimeMillis();
+        assertNull(steps.add(a, 8));
+        assertNull(steps.add(header, 9));
+        assertEquals(8, steps.minSequence());
+        assertTrue(steps.millisUntilDue(start) <= TIMEOUT_MS);
+
+        assertTrue(steps.expired(start).isEmpty());
+        Map<Path, Long> released = steps.expired(System.currentTimeMillis() + TIMEOUT_MS);
+        assertEquals(Map.of(a, 8L, header, 9L), released);
+        assertTrue(steps.isEmpty());
+        assertEquals(Long.MAX_VALUE, steps.minSequence());
+    }
+
+    @Test
+    void pieceWithoutHeaderIsReleasedOnItsOwn() {
+        Path a = piece("sol_t0006_p0000.vtu");
+        assertNull(steps.add(a, 3));
+        assertEquals(Map.of(a, 3L), steps.releaseAll());
+        assertTrue(steps.isEmpty());
+    }
+
+    private void assertCompletes(Path header, Path... pieces) {
+        long sequence = 10;
+        for (Path piece : pieces) {
+            assertTrue(steps.accepts(piece), piece.toString());
+            assertNull(steps.add(piece, sequence++));
+        }
+        StepAssembler.Step step = steps.add(header, sequence);
+        assertNotNull(step);
+        assertEquals(header, step.header);
+        assertEquals(List.of(pieces), step.pieces);
+        assertEquals(10, step.sequence);
+        assertTrue(steps.isEmpty());
+    }
+
+    private Path header(String name, String... pieces) throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<VTKFile type=\"PUnstructuredGrid\">\n<PUnstructuredGrid>\n");
+        for (String piece : pieces) {
+            xml.append("<Piece Source=\"").append(piece).append("\"/>\n");
+        }
+        xml.append("</PUnstructuredGrid>\n</VTKFile>\n");
+        return Files.writeString(dir.resolve(name), xml).toAbsolutePath().normalize();
+    }
+
+    private Path piece(String name) {
+        return dir.resolve(name).toAbsolutePath().normalize();
+    }
+}